@@ -0,0 +1,65 @@
+package gov.va.jarranger;
+
+import java.io.File;
+import java.nio.file.Path;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * The settings shared by the goals that rewrite files: whether to skip, where to keep files between
+ * runs, the cache shared with other checkouts, and when rewritten files are synced.
+ */
+@Setter(AccessLevel.PACKAGE)
+abstract class AbstractArrangeMojo extends AbstractJarrangerMojo {
+  @Parameter(defaultValue = "false", property = "jarranger.skip")
+  @Getter(AccessLevel.PACKAGE)
+  private boolean skip = false;
+
+  /**
+   * Directory for files kept between runs, such as the processing time of each file, and for result
+   * files, such as the partial result of a shard.
+   */
+  @Parameter(
+      defaultValue = "${project.build.directory}/jarranger",
+      property = "jarranger.outputDirectory")
+  @Getter(AccessLevel.PACKAGE)
+  private File outputDirectory;
+
+  /** Share results with other checkouts on this machine. */
+  @Parameter(defaultValue = "false", property = "jarranger.sharedCache")
+  private boolean sharedCache = false;
+
+  @Parameter(
+      defaultValue = "${user.home}/.m2/jarranger-cache",
+      property = "jarranger.sharedCacheDirectory")
+  private File sharedCacheDirectory;
+
+  /** Size of the shared cache above which the least recently used results are evicted. */
+  @Parameter(defaultValue = "256", property = "jarranger.sharedCacheMaxMegabytes")
+  private long sharedCacheMaxMegabytes = 256;
+
+  /** When rewritten files are synced to disk: NONE, PER_FILE or END_OF_RUN. */
+  @Parameter(defaultValue = "NONE", property = "jarranger.durability")
+  private Durability durability = Durability.NONE;
+
+  /** The arranger, also keeping its state between runs in the output directory. */
+  @Override
+  Jarranger.JarrangerBuilder configure() {
+    return super.configure()
+        .costsFile(outputFile("costs.properties"))
+        .stampsFile(outputFile("stamps.properties"))
+        .fingerprintsFile(outputFile("fingerprints.idx"))
+        .parseFailuresFile(outputFile("parse-failures.idx"))
+        .sharedCacheDirectory(
+            sharedCache && sharedCacheDirectory != null ? sharedCacheDirectory.toPath() : null)
+        .sharedCacheMaxBytes(sharedCacheMaxMegabytes << 20)
+        .durability(durability);
+  }
+
+  /** A file in the output directory, or null if there is none. */
+  Path outputFile(final String name) {
+    return outputDirectory == null ? null : outputDirectory.toPath().resolve(name);
+  }
+}
@@ -0,0 +1,84 @@
+package gov.va.jarranger;
+
+import java.time.Duration;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * The settings of how files are arranged, shared by every goal that arranges them. A goal adds the
+ * settings of its own to the arranger that {@link #configure()} returns, so an option added here
+ * reaches every goal.
+ */
+@Setter(AccessLevel.PACKAGE)
+abstract class AbstractJarrangerMojo extends AbstractMojo {
+  /** Order in which files are started. */
+  @Parameter(defaultValue = "LARGEST_FIRST", property = "jarranger.schedule")
+  @Getter(AccessLevel.PACKAGE)
+  private SchedulingPolicy schedule = SchedulingPolicy.LARGEST_FIRST;
+
+  @Parameter(defaultValue = "LEAN", property = "jarranger.parserProfile")
+  @Getter(AccessLevel.PACKAGE)
+  private ParserProfile parserProfile = ParserProfile.LEAN;
+
+  /** Also format with google-java-format, so fmt-maven-plugin need not run afterwards. */
+  @Parameter(defaultValue = "false", property = "jarranger.format")
+  @Getter(AccessLevel.PACKAGE)
+  private boolean format = false;
+
+  @Parameter(defaultValue = "${plugin.version}", readonly = true)
+  @Getter(AccessLevel.PACKAGE)
+  private String pluginVersion;
+
+  /** Files larger than this are skipped. No limit if zero. */
+  @Parameter(defaultValue = "0", property = "jarranger.maxFileKilobytes")
+  private long maxFileKilobytes = 0;
+
+  /** Work on a file that takes longer than this is cancelled. No limit if zero. */
+  @Parameter(defaultValue = "0", property = "jarranger.fileTimeoutSeconds")
+  private int fileTimeoutSeconds = 0;
+
+  /** Retry a file that timed out without formatting, if formatting was on. */
+  @Parameter(defaultValue = "false", property = "jarranger.fallback")
+  private boolean fallback = false;
+
+  /** Adjust the number of worker threads while running, to keep throughput high. */
+  @Parameter(defaultValue = "false", property = "jarranger.adaptive")
+  private boolean adaptive = false;
+
+  /** Percentage of the heap above which adaptive concurrency lowers the number of workers. */
+  @Parameter(defaultValue = "80", property = "jarranger.heapCeilingPercent")
+  private int heapCeilingPercent = 80;
+
+  /** The number of forked JVMs to arrange in, apart from the Maven heap. None if zero. */
+  @Parameter(defaultValue = "0", property = "jarranger.forkedWorkers")
+  private int forkedWorkers = 0;
+
+  /** Options of each forked JVM, such as "-Xmx512m -XX:+UseSerialGC". */
+  @Parameter(property = "jarranger.workerJvmArgs")
+  private String workerJvmArgs;
+
+  /** Read and write files on virtual threads, on Java 21 or later. */
+  @Parameter(defaultValue = "false", property = "jarranger.virtualThreads")
+  private boolean virtualThreads = false;
+
+  /** An arranger with these settings, logging to this goal. */
+  Jarranger.JarrangerBuilder configure() {
+    return Jarranger.builder()
+        .log(getLog())
+        .schedule(schedule)
+        .parserProfile(parserProfile)
+        .format(format)
+        .maxFileBytes(maxFileKilobytes << 10)
+        .fileTimeout(fileTimeoutSeconds > 0 ? Duration.ofSeconds(fileTimeoutSeconds) : null)
+        .fallback(fallback)
+        .adaptive(adaptive)
+        .heapCeiling(heapCeilingPercent / 100.0)
+        .forkedWorkers(forkedWorkers)
+        .workerJvmArgs(workerJvmArgs)
+        .virtualThreads(virtualThreads)
+        .pluginVersion(pluginVersion == null ? "unknown" : pluginVersion);
+  }
+}
@@ -0,0 +1,212 @@
+package gov.va.jarranger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.SneakyThrows;
+
+/**
+ * Limits the number of workers that arrange files at once, and adjusts the limit while the run goes
+ * on. A controller thread samples throughput and heap occupancy once per interval. If the heap is
+ * fuller than the ceiling, the limit is halved. Otherwise the limit climbs one step at a time in
+ * the direction that last raised throughput, and turns around when throughput falls.
+ *
+ * <p>Throughput is measured in source bytes per second rather than files per second, since files
+ * are started largest first and the file rate rises on its own. Heap occupancy is read from the
+ * memory pool MXBeans as the usage after the last collection, so garbage does not count.
+ */
+final class AdaptiveConcurrency implements AutoCloseable {
+  /** Number of the latest changes kept for the timing report. */
+  static final int KEPT_CHANGES = 8;
+
+  /** A drop in throughput smaller than this is taken as noise. */
+  private static final double NOISE = 0.05;
+
+  private final int maxWorkers;
+
+  private final double heapCeiling;
+
+  private final long intervalNanos;
+
+  private final long startNanos = System.nanoTime();
+
+  private final AtomicLong bytesDone = new AtomicLong();
+
+  private final String start;
+
+  /** The latest changes, oldest first. Guarded by itself. */
+  private final Deque<String> changes = new ArrayDeque<>(KEPT_CHANGES);
+
+  private final Thread controller;
+
+  /** Number of changes dropped from the front of the latest changes. */
+  private int dropped;
+
+  private int limit;
+
+  private int active;
+
+  private volatile boolean closed;
+
+  /** Start with half of the maximum number of workers, and adjust once per interval. */
+  AdaptiveConcurrency(final int maxWorkers, final double heapCeiling, final Duration interval) {
+    checkArgument(maxWorkers > 0, "Expected at least one worker, got %s.", maxWorkers);
+    checkArgument(
+        heapCeiling > 0 && heapCeiling <= 1, "Heap ceiling %s is not a fraction.", heapCeiling);
+    this.maxWorkers = maxWorkers;
+    this.heapCeiling = heapCeiling;
+    this.intervalNanos = interval.toNanos();
+    this.limit = Math.max(1, maxWorkers / 2);
+    this.start = limit + " at the start";
+    this.controller = new Thread(this::control, "jarranger-concurrency");
+    controller.setDaemon(true);
+    controller.start();
+  }
+
+  /** The fraction of the heap in use after the last collection, as read from this JVM. */
+  static double heapOccupancy() {
+    return heapOccupancy(
+        ManagementFactory.getMemoryPoolMXBeans(),
+        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage());
+  }
+
+  /**
+   * The fraction of the heap in use after the last collection, taking the fullest pool that
+   * supports a usage threshold. Only the pools of long-lived objects do; a survivor space may be
+   * full after every collection, which says nothing about the heap. Falls back to the current usage
+   * of the whole heap until there was a collection.
+   */
+  static double heapOccupancy(final List<MemoryPoolMXBean> pools, final MemoryUsage heap) {
+    double occupancy = 0;
+    for (final MemoryPoolMXBean pool : pools) {
+      if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) {
+        continue;
+      }
+      final MemoryUsage afterCollection = pool.getCollectionUsage();
+      if (afterCollection != null && afterCollection.getMax() > 0) {
+        occupancy =
+            Math.max(occupancy, (double) afterCollection.getUsed() / afterCollection.getMax());
+      }
+    }
+    if (occupancy > 0) {
+      return occupancy;
+    }
+    final long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+    return (double) heap.getUsed() / max;
+  }
+
+  /** Wait until fewer workers than the limit are active, then count this one as active. */
+  @SneakyThrows
+  synchronized void acquire() {
+    while (active >= limit) {
+      wait();
+    }
+    active++;
+  }
+
+  /**
+   * The limit at the start and the latest changes made to it, in order, for the timing report. The
+   * number of earlier changes stands in for them, so a long run does not make a long report.
+   */
+  List<String> changes() {
+    final List<String> result = new ArrayList<>(KEPT_CHANGES + 2);
+    result.add(start);
+    synchronized (changes) {
+      if (dropped > 0) {
+        result.add(dropped + " earlier changes");
+      }
+      result.addAll(changes);
+    }
+    return result;
+  }
+
+  @Override
+  @SneakyThrows
+  public void close() {
+    closed = true;
+    controller.interrupt();
+    controller.join();
+  }
+
+  private void control() {
+    int direction = 1;
+    double previousRate = 0;
+    long previousBytes = 0;
+    long previousNanos = System.nanoTime();
+    while (!closed) {
+      try {
+        Thread.sleep(intervalNanos / 1_000_000, (int) (intervalNanos % 1_000_000));
+      } catch (InterruptedException e) {
+        return;
+      }
+      final long now = System.nanoTime();
+      final long bytes = bytesDone.get();
+      if (bytes == previousBytes) {
+        // No file finished, so there is nothing to compare yet.
+        continue;
+      }
+      final double rate = (bytes - previousBytes) / ((now - previousNanos) / 1e9);
+      final double occupancy = heapOccupancy();
+      final int current = limit();
+      final int next;
+      final String reason;
+      if (occupancy > heapCeiling) {
+        next = Math.max(1, current / 2);
+        direction = -1;
+        reason = String.format(Locale.US, "heap %.0f%%", 100 * occupancy);
+      } else {
+        if (rate < previousRate * (1 - NOISE)) {
+          direction = -direction;
+        }
+        next = Math.max(1, Math.min(maxWorkers, current + direction));
+        reason = String.format(Locale.US, "%.0f kB/s", rate / 1024);
+      }
+      if (next != current) {
+        setLimit(next);
+        recordChange(
+            String.format(Locale.US, "%d at %.2f s (%s)", next, (now - startNanos) / 1e9, reason));
+      }
+      previousRate = rate;
+      previousBytes = bytes;
+      previousNanos = now;
+    }
+  }
+
+  /** The number of workers allowed at once. */
+  synchronized int limit() {
+    return limit;
+  }
+
+  /** Keep a change for the timing report, dropping the oldest one kept if there are too many. */
+  void recordChange(final String change) {
+    synchronized (changes) {
+      if (changes.size() == KEPT_CHANGES) {
+        changes.removeFirst();
+        dropped++;
+      }
+      changes.addLast(change);
+    }
+  }
+
+  /** Count a worker that finished a file of the given size as no longer active. */
+  synchronized void release(final long bytes) {
+    bytesDone.addAndGet(bytes);
+    active--;
+    notifyAll();
+  }
+
+  private synchronized void setLimit(final int newLimit) {
+    limit = newLimit;
+    notifyAll();
+  }
+}
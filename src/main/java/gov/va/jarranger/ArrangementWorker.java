@@ -0,0 +1,119 @@
+package gov.va.jarranger;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Optional;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+/**
+ * The main class of a forked worker JVM, which arranges the content sent by a {@link WorkerPool}.
+ * The protocol runs over the standard input and output of the worker, all numbers big-endian:
+ *
+ * <ul>
+ *   <li>Settings, sent once: int {@link #VERSION}, boolean format, UTF parser profile, long timeout
+ *       in nanoseconds, or zero for none.
+ *   <li>Request: int content length, UTF path, boolean lean, content in UTF-8. A length of -1 ends
+ *       the session.
+ *   <li>Response: byte status. A changed status is followed by int length and content in UTF-8, and
+ *       a failed status by a UTF message, cut short if it is too long for one.
+ * </ul>
+ *
+ * <p>Log messages of the worker go to its standard error, which the Maven JVM inherits.
+ */
+final class ArrangementWorker {
+  static final int VERSION = 1;
+
+  static final byte UNCHANGED = 0;
+
+  static final byte CHANGED = 1;
+
+  static final byte UNPARSABLE = 2;
+
+  static final byte TIMED_OUT = 3;
+
+  static final byte FAILED = 4;
+
+  /** The longest failure message sent, in characters. */
+  private static final int MAX_MESSAGE_CHARS = 65_535 / 3;
+
+  private ArrangementWorker() {}
+
+  public static void main(final String[] args) throws IOException {
+    final FileOutputStream out = new FileOutputStream(FileDescriptor.out);
+    // Anything else printed to standard output would corrupt the protocol.
+    System.setOut(System.err);
+    serve(System.in, out);
+  }
+
+  /**
+   * The message of a failure, cut short to fit in a UTF string. Modified UTF-8 takes at most three
+   * bytes per character.
+   */
+  static String message(final Throwable failure) {
+    final String message = String.valueOf(failure);
+    return message.length() <= MAX_MESSAGE_CHARS
+        ? message
+        : message.substring(0, MAX_MESSAGE_CHARS - 3) + "...";
+  }
+
+  /** Read the settings and then the requests of a session, and write a response to each. */
+  static void serve(final InputStream input, final OutputStream output) throws IOException {
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+
+    final int version = in.readInt();
+    checkState(version == VERSION, "Expected protocol version %s, got %s.", VERSION, version);
+    final boolean format = in.readBoolean();
+    final ParserProfile parserProfile = ParserProfile.valueOf(in.readUTF());
+    final long timeoutNanos = in.readLong();
+    final Duration fileTimeout = timeoutNanos == 0 ? null : Duration.ofNanos(timeoutNanos);
+    final Jarranger arranger =
+        Jarranger.builder()
+            .log(new SystemStreamLog())
+            .format(format)
+            .parserProfile(parserProfile)
+            .build();
+
+    for (int length = in.readInt(); length >= 0; length = in.readInt()) {
+      final String path = in.readUTF();
+      final boolean lean = in.readBoolean();
+      final byte[] content = new byte[length];
+      in.readFully(content);
+      final SourceText original = SourceText.of(ByteBuffer.wrap(content));
+      try {
+        final Optional<CharSequence> arranged =
+            arranger.arrangeContent(Paths.get(path), original, Deadline.after(fileTimeout), lean);
+        if (!arranged.isPresent()) {
+          out.writeByte(UNPARSABLE);
+        } else if (original.contentEquals(arranged.get())) {
+          out.writeByte(UNCHANGED);
+        } else {
+          final byte[] bytes = arranged.get().toString().getBytes(StandardCharsets.UTF_8);
+          out.writeByte(CHANGED);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+      } catch (Deadline.Exceeded e) {
+        out.writeByte(TIMED_OUT);
+      } catch (RuntimeException | OutOfMemoryError | StackOverflowError e) {
+        // The syntax tree is dropped, so the heap recovers for the next file.
+        out.writeByte(FAILED);
+        out.writeUTF(message(e));
+      }
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package gov.va.jarranger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds the next of a few ASCII characters in source bytes, such as braces, quotes, newlines or
+ * comment markers. The bytes are scanned eight at a time: each word is compared with every target
+ * at once, in the bits of a {@code long}. Every match in a word is marked exactly, without carries
+ * between bytes, so the first match is the first marked byte in memory order.
+ *
+ * <p>A scalar version gives the same results one byte at a time. It is used for the tail of the
+ * bytes and to check the word version against.
+ */
+final class ByteScanner {
+  private static final long ONES = 0x0101010101010101L;
+
+  private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  private final String targets;
+
+  /** Each target repeated in every byte of a word. */
+  private final long[] broadcast;
+
+  private ByteScanner(final String targets) {
+    this.targets = targets;
+    this.broadcast = new long[targets.length()];
+    for (int i = 0; i < targets.length(); i++) {
+      broadcast[i] = targets.charAt(i) * ONES;
+    }
+  }
+
+  /** A scanner for any of the given ASCII characters. */
+  static ByteScanner anyOf(final String targets) {
+    checkArgument(!targets.isEmpty(), "Expected a character to scan for.");
+    checkArgument(
+        targets.chars().allMatch(c -> c < 0x80), "Expected ASCII characters, got %s.", targets);
+    return new ByteScanner(targets);
+  }
+
+  /** Whether every byte from position zero to the limit is ASCII, checked eight at a time. */
+  static boolean isAscii(final ByteBuffer bytes) {
+    final int limit = bytes.limit();
+    int i = 0;
+    for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+      if ((bytes.getLong(i) & HIGH_BITS) != 0) {
+        return false;
+      }
+    }
+    for (; i < limit; i++) {
+      if (bytes.get(i) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Whether every byte from position zero to the limit is ASCII, checked one at a time. */
+  static boolean isAsciiScalar(final ByteBuffer bytes) {
+    for (int i = 0; i < bytes.limit(); i++) {
+      if (bytes.get(i) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The high bit of each byte of the word that is zero, and no other bits. */
+  private static long zeroBytes(final long word) {
+    return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+  }
+
+  /** The index of the first target character from the start, or the end if there is none. */
+  int find(final ByteBuffer bytes, final int start, final int end) {
+    final boolean bigEndian = bytes.order() == ByteOrder.BIG_ENDIAN;
+    int i = start;
+    for (; i + Long.BYTES <= end; i += Long.BYTES) {
+      final long word = bytes.getLong(i);
+      long matches = 0;
+      for (final long target : broadcast) {
+        matches |= zeroBytes(word ^ target);
+      }
+      if (matches != 0) {
+        final int bits =
+            bigEndian ? Long.numberOfLeadingZeros(matches) : Long.numberOfTrailingZeros(matches);
+        return i + (bits >>> 3);
+      }
+    }
+    return findScalar(bytes, i, end);
+  }
+
+  /** The index of the first target character from the start, or the end if there is none. */
+  int find(final CharSequence source, final int start, final int end) {
+    for (int i = start; i < end; i++) {
+      if (targets.indexOf(source.charAt(i)) >= 0) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  /** As find(), one byte at a time. */
+  int findScalar(final ByteBuffer bytes, final int start, final int end) {
+    for (int i = start; i < end; i++) {
+      if (targets.indexOf(bytes.get(i)) >= 0) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  @Override
+  public String toString() {
+    return "any of " + targets;
+  }
+}
@@ -0,0 +1,63 @@
+package gov.va.jarranger;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.Duration;
+
+/**
+ * The time by which work on one file must finish. Work is cancelled cooperatively: the deadline is
+ * checked while the parser reads the source and between the steps of arrangement, and an exceeded
+ * deadline unwinds the work of that file only. Nothing is shared between files, so whatever the
+ * cancelled work allocated can be collected at once.
+ */
+final class Deadline {
+  static final Deadline NONE = new Deadline(null, 0);
+
+  private final Duration timeout;
+
+  private final long expiresNanos;
+
+  private Deadline(final Duration timeout, final long expiresNanos) {
+    this.timeout = timeout;
+    this.expiresNanos = expiresNanos;
+  }
+
+  /** A deadline the given time from now, or none if the timeout is null. */
+  static Deadline after(final Duration timeout) {
+    if (timeout == null) {
+      return NONE;
+    }
+    return new Deadline(timeout, System.nanoTime() + timeout.toNanos());
+  }
+
+  /** Throw if the deadline has passed. */
+  void check() {
+    if (timeout != null && System.nanoTime() - expiresNanos > 0) {
+      throw new Exceeded(timeout);
+    }
+  }
+
+  /** The reader, checking the deadline on every read. */
+  Reader wrap(final Reader reader) {
+    if (timeout == null) {
+      return reader;
+    }
+    return new FilterReader(reader) {
+      @Override
+      public int read(final char[] buffer, final int offset, final int length) throws IOException {
+        check();
+        return super.read(buffer, offset, length);
+      }
+    };
+  }
+
+  /** Thrown when work on a file takes longer than its timeout. */
+  static final class Exceeded extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Exceeded(final Duration timeout) {
+      super("Timed out after " + timeout, null, false, false);
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package gov.va.jarranger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import lombok.SneakyThrows;
+import lombok.Value;
+
+/**
+ * A map from a 64 bit key to a SHA-256 digest, stored as a compact binary index so that it need not
+ * be parsed into a heap map at the start of every run. The file holds a header followed by entries
+ * of fixed width, sorted by key, and is mapped read-only, so only the pages a lookup touches are
+ * read. Lookups are a binary search of the entries, which are never modified, so parallel workers
+ * can look up without locking. New entries are appended to a lock-free queue and merged in by
+ * compaction, which writes a new file and atomically moves it into place, so a mapped file is
+ * replaced rather than changed under its mapping.
+ *
+ * <p>Windows does not allow a mapped file to be replaced, so there, and on file systems that cannot
+ * map, the file is read into a single buffer in one call instead.
+ */
+final class DigestIndex {
+  /** Number of bytes of each digest. */
+  static final int DIGEST_BYTES = 32;
+
+  private static final int MAGIC = 0x4a524458;
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_BYTES = 12;
+
+  private static final int ENTRY_BYTES = Long.BYTES + DIGEST_BYTES;
+
+  /** The entries of the index file, read only. */
+  private final ByteBuffer entries;
+
+  private final int count;
+
+  private final Queue<Entry> appended = new ConcurrentLinkedQueue<>();
+
+  private DigestIndex(final ByteBuffer entries, final int count) {
+    this.entries = entries;
+    this.count = count;
+  }
+
+  static DigestIndex empty() {
+    return new DigestIndex(ByteBuffer.allocate(0), 0);
+  }
+
+  /** The key of a string, such as an absolute path. */
+  static long key(final String name) {
+    return Hashing.murmur3_128().hashString(name, StandardCharsets.UTF_8).asLong();
+  }
+
+  /**
+   * Open an index written by an earlier run. A missing file, or one that is not a valid index,
+   * yields an empty index.
+   */
+  @SneakyThrows
+  static DigestIndex open(final Path indexFile) {
+    if (indexFile == null || !Files.isRegularFile(indexFile)) {
+      return empty();
+    }
+    ByteBuffer buffer = null;
+    if (SourceText.CAN_MAP) {
+      try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+        final long size = channel.size();
+        checkArgument(size <= Integer.MAX_VALUE, "Index %s is too large.", indexFile);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      } catch (UnsupportedOperationException e) {
+        // Not a file system that can map, such as an in-memory one.
+      }
+    }
+    if (buffer == null) {
+      buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+    }
+    if (buffer.limit() < HEADER_BYTES
+        || buffer.getInt(0) != MAGIC
+        || buffer.getInt(Integer.BYTES) != VERSION) {
+      return empty();
+    }
+    final int count = buffer.getInt(2 * Integer.BYTES);
+    if (count < 0 || (long) count * ENTRY_BYTES != buffer.limit() - HEADER_BYTES) {
+      return empty();
+    }
+    return new DigestIndex(buffer.position(HEADER_BYTES).slice(), count);
+  }
+
+  /**
+   * Write the entries of this index and the appended entries to the given file, replacing it
+   * atomically. The appended entry wins when both have the same key. Nothing is written if nothing
+   * was appended.
+   */
+  @SneakyThrows
+  void compactTo(final Path indexFile) {
+    if (appended.isEmpty()) {
+      return;
+    }
+    final List<Entry> updates = new ArrayList<>(appended);
+    // The sort is stable, so the last entry appended for a key is the last of its run.
+    updates.sort(Comparator.comparingLong(Entry::getKey));
+    final ByteBuffer out =
+        ByteBuffer.allocate(HEADER_BYTES + (count + updates.size()) * ENTRY_BYTES);
+    out.position(HEADER_BYTES);
+    int written = 0;
+    int i = 0;
+    int u = 0;
+    while (i < count || u < updates.size()) {
+      if (u < updates.size() && (i == count || updates.get(u).getKey() <= keyAt(i))) {
+        final Entry update = updates.get(u);
+        while (u < updates.size() && updates.get(u).getKey() == update.getKey()) {
+          u++;
+        }
+        final Entry last = updates.get(u - 1);
+        out.putLong(last.getKey()).put(last.getDigest());
+        if (i < count && keyAt(i) == last.getKey()) {
+          i++;
+        }
+      } else {
+        out.putLong(keyAt(i)).put(entries.slice(i * ENTRY_BYTES + Long.BYTES, DIGEST_BYTES));
+        i++;
+      }
+      written++;
+    }
+    out.putInt(0, MAGIC).putInt(Integer.BYTES, VERSION).putInt(2 * Integer.BYTES, written);
+    out.flip();
+
+    final Path absoluteFile = indexFile.toAbsolutePath();
+    MoreFiles.createParentDirectories(absoluteFile);
+    final Path tempFile = absoluteFile.resolveSibling(absoluteFile.getFileName() + ".tmp");
+    try (FileChannel channel =
+        FileChannel.open(
+            tempFile,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+    }
+    Files.move(
+        tempFile,
+        absoluteFile,
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /** Whether the index holds the given digest for the key. Appended entries are not searched. */
+  boolean contains(final long key, final HashCode digest) {
+    final int index = indexOf(key);
+    if (index < 0) {
+      return false;
+    }
+    final byte[] bytes = digest.asBytes();
+    final int offset = index * ENTRY_BYTES + Long.BYTES;
+    for (int b = 0; b < DIGEST_BYTES; b++) {
+      if (entries.get(offset + b) != bytes[b]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Whether the index holds any digest for the key. Appended entries are not searched. */
+  boolean containsKey(final long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /** Binary search for the entry of the key, returning -1 if there is none. */
+  private int indexOf(final long key) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final long midKey = keyAt(mid);
+      if (midKey < key) {
+        low = mid + 1;
+      } else if (midKey > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /** Whether the entries are mapped from the index file, rather than read into memory. */
+  boolean isMapped() {
+    return entries instanceof MappedByteBuffer;
+  }
+
+  private long keyAt(final int index) {
+    return entries.getLong(index * ENTRY_BYTES);
+  }
+
+  /** Append an entry, to be merged in by the next compaction. Safe to call from any thread. */
+  void put(final long key, final HashCode digest) {
+    checkArgument(digest.bits() == DIGEST_BYTES * Byte.SIZE, "Expected a SHA-256 digest.");
+    appended.add(new Entry(key, digest.asBytes()));
+  }
+
+  @Value
+  private static final class Entry {
+    private final long key;
+
+    private final byte[] digest;
+  }
+}
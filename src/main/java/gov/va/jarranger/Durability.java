@@ -0,0 +1,13 @@
+package gov.va.jarranger;
+
+/** When rewritten files are synced to disk. */
+enum Durability {
+  /** Never. The operating system writes them back in its own time. */
+  NONE,
+
+  /** Each file, before it is renamed into place, and its directory after. */
+  PER_FILE,
+
+  /** Every rewritten file and its directory, once at the end of the run. */
+  END_OF_RUN
+}
@@ -0,0 +1,315 @@
+package gov.va.jarranger;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import lombok.SneakyThrows;
+import lombok.Value;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A log for worker threads that never blocks them on the Maven logger. Messages are added to a
+ * lock-free queue and written by a single consumer thread, in the order they were added. Messages
+ * of a disabled level are dropped at once, and the enabled levels are read once, up front, so
+ * callers can check them cheaply before building a message.
+ *
+ * <p>The consumer also reports progress: the number of files done, the rate, and the estimated time
+ * left, at most once per interval. It is parked while there is nothing to do, and woken when a
+ * message is added or a file is done.
+ *
+ * <p>Messages added after the log is closed, by work that was cancelled, are written by the thread
+ * that adds them. Writes are serialized, so the delegate is never called by two threads at once.
+ */
+final class EventLog implements Log, AutoCloseable {
+  private final Log delegate;
+
+  private final boolean debugEnabled;
+
+  private final boolean infoEnabled;
+
+  private final boolean warnEnabled;
+
+  private final boolean errorEnabled;
+
+  private final int files;
+
+  private final long progressIntervalNanos;
+
+  private final long startNanos = System.nanoTime();
+
+  private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger done = new AtomicInteger();
+
+  private final Thread consumer;
+
+  private volatile boolean closed;
+
+  /** Whether the consumer is about to park, or parked, so that adding work must wake it. */
+  private volatile boolean parked;
+
+  /** Start writing the messages of a run over the given number of files to the delegate. */
+  EventLog(final Log delegate, final int files, final Duration progressInterval) {
+    this.delegate = delegate;
+    this.debugEnabled = delegate.isDebugEnabled();
+    this.infoEnabled = delegate.isInfoEnabled();
+    this.warnEnabled = delegate.isWarnEnabled();
+    this.errorEnabled = delegate.isErrorEnabled();
+    this.files = files;
+    this.progressIntervalNanos = progressInterval.toNanos();
+    this.consumer = new Thread(this::consume, "jarranger-log");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  private void add(final Level level, final CharSequence content, final Throwable error) {
+    events.add(new Event(level, content, error));
+    if (closed) {
+      // A late message of cancelled work, added after the consumer stopped.
+      drain();
+    } else {
+      wake();
+    }
+  }
+
+  /** Park the consumer until a message is added, more files are done, or the log is closed. */
+  private void awaitWork(final int seenDone) {
+    parked = true;
+    // Checked after setting the flag, so work added meanwhile is either seen here or wakes it.
+    while (events.isEmpty() && done.get() == seenDone && !closed) {
+      LockSupport.park(this);
+    }
+    parked = false;
+  }
+
+  /** Stop the consumer, once it has written every message added so far. */
+  @Override
+  @SneakyThrows
+  public void close() {
+    closed = true;
+    LockSupport.unpark(consumer);
+    consumer.join();
+    drain();
+  }
+
+  private void consume() {
+    long lastProgressNanos = startNanos;
+    int lastDone = 0;
+    int seenDone = 0;
+    boolean last = false;
+    while (!last) {
+      // Once closed, drain and report progress one last time.
+      last = closed;
+      if (!last) {
+        awaitWork(seenDone);
+      }
+      drain();
+      final long now = System.nanoTime();
+      final int doneNow = done.get();
+      seenDone = doneNow;
+      if (infoEnabled && now - lastProgressNanos >= progressIntervalNanos && doneNow > lastDone) {
+        synchronized (this) {
+          delegate.info(progress(doneNow, now - startNanos));
+        }
+        lastProgressNanos = now;
+        lastDone = doneNow;
+      }
+    }
+  }
+
+  @Override
+  public void debug(final CharSequence content) {
+    if (debugEnabled) {
+      add(Level.DEBUG, content, null);
+    }
+  }
+
+  @Override
+  public void debug(final CharSequence content, final Throwable error) {
+    if (debugEnabled) {
+      add(Level.DEBUG, content, error);
+    }
+  }
+
+  @Override
+  public void debug(final Throwable error) {
+    if (debugEnabled) {
+      add(Level.DEBUG, null, error);
+    }
+  }
+
+  private synchronized void drain() {
+    for (Event event = events.poll(); event != null; event = events.poll()) {
+      write(event);
+    }
+  }
+
+  @Override
+  public void error(final CharSequence content) {
+    if (errorEnabled) {
+      add(Level.ERROR, content, null);
+    }
+  }
+
+  @Override
+  public void error(final CharSequence content, final Throwable error) {
+    if (errorEnabled) {
+      add(Level.ERROR, content, error);
+    }
+  }
+
+  @Override
+  public void error(final Throwable error) {
+    if (errorEnabled) {
+      add(Level.ERROR, null, error);
+    }
+  }
+
+  /** Count a file as done. Safe to call from any thread. */
+  void fileDone() {
+    done.incrementAndGet();
+    wake();
+  }
+
+  @Override
+  public void info(final CharSequence content) {
+    if (infoEnabled) {
+      add(Level.INFO, content, null);
+    }
+  }
+
+  @Override
+  public void info(final CharSequence content, final Throwable error) {
+    if (infoEnabled) {
+      add(Level.INFO, content, error);
+    }
+  }
+
+  @Override
+  public void info(final Throwable error) {
+    if (infoEnabled) {
+      add(Level.INFO, null, error);
+    }
+  }
+
+  @Override
+  public boolean isDebugEnabled() {
+    return debugEnabled;
+  }
+
+  @Override
+  public boolean isErrorEnabled() {
+    return errorEnabled;
+  }
+
+  @Override
+  public boolean isInfoEnabled() {
+    return infoEnabled;
+  }
+
+  @Override
+  public boolean isWarnEnabled() {
+    return warnEnabled;
+  }
+
+  private String progress(final int doneNow, final long elapsedNanos) {
+    final double filesPerSecond = doneNow / (elapsedNanos / 1e9);
+    final double secondsLeft = (files - doneNow) / filesPerSecond;
+    return String.format(
+        Locale.US,
+        "Processed %d of %d files (%.1f files/s, about %.0f s left).",
+        doneNow,
+        files,
+        filesPerSecond,
+        secondsLeft);
+  }
+
+  private void wake() {
+    if (parked) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  @Override
+  public void warn(final CharSequence content) {
+    if (warnEnabled) {
+      add(Level.WARN, content, null);
+    }
+  }
+
+  @Override
+  public void warn(final CharSequence content, final Throwable error) {
+    if (warnEnabled) {
+      add(Level.WARN, content, error);
+    }
+  }
+
+  @Override
+  public void warn(final Throwable error) {
+    if (warnEnabled) {
+      add(Level.WARN, null, error);
+    }
+  }
+
+  private void write(final Event event) {
+    final CharSequence content = event.getContent();
+    final Throwable error = event.getError();
+    switch (event.getLevel()) {
+      case DEBUG:
+        if (content == null) {
+          delegate.debug(error);
+        } else if (error == null) {
+          delegate.debug(content);
+        } else {
+          delegate.debug(content, error);
+        }
+        break;
+      case INFO:
+        if (content == null) {
+          delegate.info(error);
+        } else if (error == null) {
+          delegate.info(content);
+        } else {
+          delegate.info(content, error);
+        }
+        break;
+      case WARN:
+        if (content == null) {
+          delegate.warn(error);
+        } else if (error == null) {
+          delegate.warn(content);
+        } else {
+          delegate.warn(content, error);
+        }
+        break;
+      default:
+        if (content == null) {
+          delegate.error(error);
+        } else if (error == null) {
+          delegate.error(content);
+        } else {
+          delegate.error(content, error);
+        }
+        break;
+    }
+  }
+
+  private enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR
+  }
+
+  @Value
+  private static final class Event {
+    private final Level level;
+
+    private final CharSequence content;
+
+    private final Throwable error;
+  }
+}
@@ -0,0 +1,121 @@
+package gov.va.jarranger;
+
+import com.google.common.io.MoreFiles;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.SneakyThrows;
+
+/**
+ * Processing time of each source file, remembered between runs so that the slowest files can be
+ * started first. Files without a recorded time are estimated from their size, using the average
+ * time per byte of the previous run.
+ */
+final class FileCosts {
+  /** Properties key of the average time per byte. Never collides with the absolute file paths. */
+  private static final String NANOS_PER_BYTE = "nanosPerByte";
+
+  private final Map<String, Long> recordedNanos;
+
+  private final double nanosPerByte;
+
+  private final Map<String, Long> measuredNanos = new ConcurrentHashMap<>();
+
+  private final AtomicLong measuredBytes = new AtomicLong();
+
+  private final AtomicLong measuredTotalNanos = new AtomicLong();
+
+  private FileCosts(final Map<String, Long> recordedNanos, final double nanosPerByte) {
+    this.recordedNanos = recordedNanos;
+    this.nanosPerByte = nanosPerByte;
+  }
+
+  static FileCosts empty() {
+    return new FileCosts(new HashMap<>(), 1);
+  }
+
+  private static String key(final Path sourceFile) {
+    return sourceFile.toAbsolutePath().toString();
+  }
+
+  /** Load the costs recorded by an earlier run. A missing or unreadable file yields no costs. */
+  @SneakyThrows
+  static FileCosts load(final Path costsFile) {
+    if (costsFile == null || !Files.isRegularFile(costsFile)) {
+      return empty();
+    }
+    final Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(costsFile, StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    } catch (IllegalArgumentException e) {
+      return empty();
+    }
+    final Map<String, Long> recordedNanos = new HashMap<>(properties.size());
+    double nanosPerByte = 1;
+    for (final String name : properties.stringPropertyNames()) {
+      try {
+        if (name.equals(NANOS_PER_BYTE)) {
+          nanosPerByte = Double.parseDouble(properties.getProperty(name));
+        } else {
+          recordedNanos.put(name, Long.parseLong(properties.getProperty(name)));
+        }
+      } catch (NumberFormatException e) {
+        // Ignore a damaged entry; the file will be estimated by size instead.
+      }
+    }
+    return new FileCosts(recordedNanos, nanosPerByte);
+  }
+
+  /** Total time measured in this run, summed over all files. */
+  long busyNanos() {
+    return measuredTotalNanos.get();
+  }
+
+  /** The expected processing time of a file, in nanoseconds. */
+  long estimate(final Path sourceFile, final long size) {
+    final Long recorded = recordedNanos.get(key(sourceFile));
+    if (recorded != null) {
+      return recorded;
+    }
+    return (long) (size * nanosPerByte);
+  }
+
+  void record(final Path sourceFile, final long size, final long nanos) {
+    measuredNanos.put(key(sourceFile), nanos);
+    measuredBytes.addAndGet(size);
+    measuredTotalNanos.addAndGet(nanos);
+  }
+
+  /**
+   * Save the costs measured in this run. Recorded costs of files that were not processed, e.g.
+   * because they belong to another shard, are kept.
+   */
+  @SneakyThrows
+  void save(final Path costsFile) {
+    final Properties properties = new Properties();
+    recordedNanos.forEach((k, v) -> properties.setProperty(k, Long.toString(v)));
+    measuredNanos.forEach((k, v) -> properties.setProperty(k, Long.toString(v)));
+    final double averageNanosPerByte =
+        measuredBytes.get() == 0
+            ? nanosPerByte
+            : (double) measuredTotalNanos.get() / measuredBytes.get();
+    properties.setProperty(NANOS_PER_BYTE, Double.toString(averageNanosPerByte));
+    MoreFiles.createParentDirectories(costsFile);
+    try (Writer writer = Files.newBufferedWriter(costsFile, StandardCharsets.UTF_8)) {
+      properties.store(writer, "jarranger processing time per file, in nanoseconds");
+    }
+  }
+
+  /** The file that took longest in this run, if any. */
+  Optional<Map.Entry<String, Long>> slowest() {
+    return measuredNanos.entrySet().stream().max(Map.Entry.comparingByValue());
+  }
+}
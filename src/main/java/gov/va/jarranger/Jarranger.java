@@ -2,58 +2,285 @@ package gov.va.jarranger;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParseStart;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.Providers;
 import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.NodeList;
 import com.github.javaparser.ast.body.BodyDeclaration;
 import com.github.javaparser.ast.body.TypeDeclaration;
 import com.github.javaparser.printer.PrettyPrinter;
 import com.github.javaparser.printer.PrettyPrinterConfiguration;
-import com.github.javaparser.utils.SourceRoot;
-import com.google.common.collect.Iterables;
-import java.io.File;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.googlejavaformat.java.Formatter;
+import com.google.googlejavaformat.java.FormatterException;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 import lombok.Builder;
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.Value;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.plugin.logging.Log;
 
-@Builder
+@Builder(toBuilder = true)
 final class Jarranger {
+  /** Member types of at least this many lines are arranged as separate fork/join tasks. */
+  static final int FORK_THRESHOLD_LINES = 2_000;
+
+  /** The most files in progress at once for each platform thread, when files run virtually. */
+  private static final int FILES_IN_FLIGHT_PER_THREAD = 16;
+
+  /** How often adaptive concurrency samples throughput and heap occupancy. */
+  private static final Duration ADAPT_INTERVAL = Duration.ofMillis(500);
+
+  /** Printing only reads its configuration, so one printer serves every thread. */
+  private static final PrettyPrinter PRINTER = new PrettyPrinter(printerConfig());
+
+  private static final ThreadLocal<JavaParser> LEAN_PARSER =
+      ThreadLocal.withInitial(() -> new JavaParser(leanParserConfig()));
+
+  /** Types are arranged one at a time on each thread, so each thread reuses one arranger. */
+  private static final ThreadLocal<ShallowArranger> SHALLOW_ARRANGER =
+      ThreadLocal.withInitial(ShallowArranger::new);
+
   /** Maven plugin logger. */
   @NonNull private final Log log;
 
+  /** How often to report progress during a run. */
+  @Builder.Default private final Duration progressInterval = Duration.ofSeconds(10);
+
+  /** The slice of each source root to process. Defaults to every file. */
+  @Builder.Default private final Shard shard = Shard.ALL;
+
+  @Builder.Default private final SchedulingPolicy schedule = SchedulingPolicy.LARGEST_FIRST;
+
+  /** The number of workers, or the most workers at once if adaptive. */
+  @Builder.Default private final int threads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Adjust the number of workers while running, to keep throughput high and the heap below the
+   * ceiling.
+   */
+  private final boolean adaptive;
+
+  /** The fraction of the heap above which adaptive concurrency lowers the number of workers. */
+  @Builder.Default private final double heapCeiling = 0.8;
+
+  /** The number of forked JVMs to arrange in, or zero to arrange in this JVM. */
+  private final int forkedWorkers;
+
+  /** Options of each forked JVM, such as heap size and garbage collector, separated by spaces. */
+  private final String workerJvmArgs;
+
+  /** The forked JVMs of the current run, set on the copy of the arranger that its threads use. */
+  private final WorkerPool workerPool;
+
+  /**
+   * Read and write each file on a virtual thread, and only parse and arrange on the pool of
+   * platform threads, so that files waiting on a slow file system do not hold a platform thread.
+   * Needs Java 21 or later; ignored before.
+   */
+  private final boolean virtualThreads;
+
+  /**
+   * The platform threads of the current run, set on the copy of the arranger whose files run on
+   * virtual threads.
+   */
+  private final ExecutorService cpuExecutor;
+
+  /**
+   * The pool that large types of the current run are arranged on in parallel, with as many threads
+   * as the run, set on the copy of the arranger that its threads use. Types are arranged on the
+   * thread of their file if null, as in a forked JVM, which arranges one file at a time.
+   */
+  private final ForkJoinPool typePool;
+
+  /** When rewritten files are synced to disk. */
+  @Builder.Default private final Durability durability = Durability.NONE;
+
+  /**
+   * The write-behind stage of the current run, set on the copy of the arranger that its threads
+   * use.
+   */
+  private final SourceWriter writer;
+
+  /** Where the processing time of each file is kept between runs. Not kept if null. */
+  private final Path costsFile;
+
+  /**
+   * Where the stamp of each source root is kept between runs, so unchanged roots can be skipped.
+   * Not kept if null, or when only a shard of each root is arranged.
+   */
+  private final Path stampsFile;
+
+  /**
+   * Where the member header fingerprint of each arranged file is kept between runs, so files whose
+   * headers did not change can be skipped without parsing. Not kept if null, or when formatting.
+   */
+  private final Path fingerprintsFile;
+
+  /**
+   * Where the content hash of each file that failed to parse is kept between runs, so that it is
+   * skipped until it changes. Not kept if null.
+   */
+  private final Path parseFailuresFile;
+
+  /** Where results are shared with other checkouts on the machine. Not shared if null. */
+  private final Path sharedCacheDirectory;
+
+  @Builder.Default private final long sharedCacheMaxBytes = 256L << 20;
+
+  /** Part of the key of shared results, since another version may arrange differently. */
+  @Builder.Default private final String pluginVersion = "unknown";
+
+  @Builder.Default private final ParserProfile parserProfile = ParserProfile.LEAN;
+
+  /** Also format every file with google-java-format, in the same pass. */
+  private final boolean format;
+
+  /** Files larger than this are skipped without being read. No limit if zero. */
+  private final long maxFileBytes;
+
+  /** Work on a file that takes longer than this is cancelled. No limit if null. */
+  private final Duration fileTimeout;
+
+  /**
+   * Retry a file that timed out without formatting, if formatting was on. Parsing and arranging
+   * alone take the same time with either parser profile, so there is nothing else to leave out.
+   */
+  private final boolean fallback;
+
+  /** Arrange in memory only, for the benchmark goal: nothing is written, and no file is changed. */
+  private final boolean dryRun;
+
+  /** Where to record the time spent in each phase, for the benchmark goal. Not recorded if null. */
+  private final PhaseTimes phaseTimes;
+
   /**
    * Arrange the type declaration and any of its descendants that are also type declarations.
    * Returns {@code true} if the order of members (or any descendant members) changed.
    */
-  private static boolean deepArrange(final TypeDeclaration<?> typeDec) {
-    boolean didArrangement = false;
+  private static boolean deepArrange(
+      final TypeDeclaration<?> root, final Deadline deadline, final ForkJoinPool typePool) {
+    // Collect the type declarations of the tree in pre-order, without recursion, so deep nesting
+    // cannot overflow the stack. Large member types are forked to be arranged in parallel.
+    final List<TypeDeclaration<?>> preOrder = new ArrayList<>();
+    final IdentityHashMap<TypeDeclaration<?>, List<ForkJoinTask<Boolean>>> forkedByParent =
+        new IdentityHashMap<>();
+    final Deque<TypeDeclaration<?>> pending = new ArrayDeque<>();
+    pending.push(root);
+    try {
+      while (!pending.isEmpty()) {
+        final TypeDeclaration<?> typeDec = pending.pop();
+        preOrder.add(typeDec);
+        for (final BodyDeclaration<?> member : typeDec.getMembers()) {
+          if (!(member instanceof TypeDeclaration<?>)) {
+            continue;
+          }
+          final TypeDeclaration<?> child = (TypeDeclaration<?>) member;
+          if (typePool != null && lines(child) >= FORK_THRESHOLD_LINES) {
+            forkedByParent
+                .computeIfAbsent(typeDec, k -> new ArrayList<>())
+                .add(typePool.submit(() -> deepArrange(child, deadline, typePool)));
+          } else {
+            pending.push(child);
+          }
+        }
+      }
 
-    // First, recursively visit any children that also need to be arranged.
-    for (final BodyDeclaration<?> child : typeDec.getMembers()) {
-      if (child instanceof TypeDeclaration<?>) {
-        didArrangement |= deepArrange((TypeDeclaration<?>) child);
+      // In reverse pre-order, every type is arranged after all of its member types.
+      boolean didArrangement = false;
+      for (int i = preOrder.size() - 1; i >= 0; i--) {
+        final TypeDeclaration<?> typeDec = preOrder.get(i);
+        for (final ForkJoinTask<Boolean> task : forkedByParent.getOrDefault(typeDec, List.of())) {
+          didArrangement |= task.join();
+        }
+        deadline.check();
+        didArrangement |= shallowArrange(typeDec);
       }
+      return didArrangement;
+    } finally {
+      // Also after a failure, so that no task still changes the tree once this returns.
+      forkedByParent.values().forEach(tasks -> tasks.forEach(ForkJoinTask::quietlyJoin));
     }
+  }
 
-    final List<BodyDeclaration<?>> arrangedNodes = new ShallowArranger(typeDec).getArrangedNodes();
-    if (!typeDec.getMembers().equals(arrangedNodes)) {
-      typeDec.setMembers(new NodeList<>(arrangedNodes));
-      didArrangement = true;
+  /**
+   * Deep arrange the top-level types of a file. Types do not share any nodes, so large ones are
+   * forked to run in parallel on the given pool, if any. Returns {@code true} if any changed.
+   */
+  private static boolean deepArrangeAll(
+      final List<TypeDeclaration<?>> types, final Deadline deadline, final ForkJoinPool typePool) {
+    final List<ForkJoinTask<Boolean>> forked = new ArrayList<>();
+    try {
+      boolean didArrangement = false;
+      for (final TypeDeclaration<?> typeDec : types) {
+        if (typePool != null && lines(typeDec) >= FORK_THRESHOLD_LINES) {
+          forked.add(typePool.submit(() -> deepArrange(typeDec, deadline, typePool)));
+        } else {
+          didArrangement |= deepArrange(typeDec, deadline, typePool);
+        }
+      }
+      for (final ForkJoinTask<Boolean> task : forked) {
+        didArrangement |= task.join();
+      }
+      return didArrangement;
+    } finally {
+      // Also after a failure, so that no task still changes the tree once this returns.
+      forked.forEach(ForkJoinTask::quietlyJoin);
     }
+  }
+
+  private static ParserConfiguration leanParserConfig() {
+    // These are JavaParser's defaults, spelled out because the arranger relies on them: lexical
+    // preservation and symbol resolution stay off, and comments are attributed so they move with
+    // the member that follows them. Tokens stay on, since attribution needs the node ranges.
+    return new ParserConfiguration()
+        .setLexicalPreservationEnabled(false)
+        .setSymbolResolver(null)
+        .setAttributeComments(true)
+        .setDoNotAssignCommentsPrecedingEmptyLines(true)
+        .setIgnoreAnnotationsWhenAttributingComments(false);
+  }
 
-    return didArrangement;
+  private static int lines(final TypeDeclaration<?> typeDec) {
+    return typeDec.getRange().map(range -> range.end.line - range.begin.line + 1).orElse(0);
   }
 
   private static PrettyPrinterConfiguration printerConfig() {
@@ -66,92 +293,680 @@ final class Jarranger {
     return printerConfig;
   }
 
-  @SneakyThrows
-  private static void removeBlankLineAfterOpenBrace(final Path arrangedPath) {
-    final List<String> lines = Files.readAllLines(arrangedPath, StandardCharsets.UTF_8);
-    final List<String> filteredLines = new ArrayList<>(lines.size());
-    boolean filtered = false;
-    for (String line : lines) {
-      if (StringUtils.isBlank(line)
-          && !filteredLines.isEmpty()
-          && Iterables.getLast(filteredLines).trim().endsWith("{")) {
-        filtered = true;
-        continue;
+  /**
+   * Remove the blank lines the printer puts after an opening brace, in one pass over the printed
+   * content. Returns the printed content itself if there are none.
+   */
+  private static CharSequence removeBlankLineAfterOpenBrace(final String printed) {
+    final int length = printed.length();
+    StringBuilder filtered = null;
+    boolean afterOpenBrace = false;
+    for (int start = 0; start <= length; ) {
+      final int newline = printed.indexOf('\n', start);
+      final int end = newline < 0 ? length : newline;
+      int last = end - 1;
+      while (last >= start && Character.isWhitespace(printed.charAt(last))) {
+        last--;
+      }
+      if (last < start && afterOpenBrace) {
+        if (filtered == null) {
+          filtered = new StringBuilder(length).append(printed, 0, start);
+        }
+        if (newline < 0) {
+          // The last line has no newline, so drop the one before it.
+          filtered.setLength(filtered.length() - 1);
+        }
+      } else {
+        if (filtered != null) {
+          filtered.append(printed, start, newline < 0 ? end : end + 1);
+        }
+        afterOpenBrace = last >= start && printed.charAt(last) == '{';
       }
-      filteredLines.add(line);
+      start = end + 1;
+    }
+    return filtered == null ? printed : filtered;
+  }
+
+  /** Order the files according to the scheduling policy. */
+  private static List<SourceFile> schedule(
+      final List<SourceFile> sourceFiles, final SchedulingPolicy policy, final FileCosts costs) {
+    if (policy == SchedulingPolicy.DISCOVERY) {
+      return sourceFiles;
     }
-    if (!filtered) {
-      return;
+    final Map<SourceFile, Long> estimates = new HashMap<>(sourceFiles.size());
+    for (final SourceFile sourceFile : sourceFiles) {
+      estimates.put(sourceFile, costs.estimate(sourceFile.getPath(), sourceFile.getSize()));
     }
-    Files.writeString(
-        arrangedPath,
-        filteredLines.stream().collect(Collectors.joining("\n")),
-        StandardCharsets.UTF_8,
-        StandardOpenOption.TRUNCATE_EXISTING);
+    final List<SourceFile> ordered = new ArrayList<>(sourceFiles);
+    ordered.sort(Comparator.<SourceFile>comparingLong(estimates::get).reversed());
+    return ordered;
   }
 
   /**
-   * Arrange each Java file in the given source directory. This directory corresponds to the root of
-   * the package structure, e.g. proj/src/main/java or proj/src/test/java.
+   * Arrange the members of the type itself, but not of its member types. Returns {@code true} if
+   * their order changed.
    */
-  @SneakyThrows
-  ArrangementResult arrange(final File sourceRootDir) {
-    checkArgument(sourceRootDir.exists(), "File %s does not exist.", sourceRootDir);
-    checkArgument(sourceRootDir.isDirectory(), "File %s is not a directory.", sourceRootDir);
-
-    final SourceRoot sourceRoot = new SourceRoot(sourceRootDir.toPath());
-    sourceRoot.setPrinter(new PrettyPrinter(printerConfig())::print);
-
-    final AtomicInteger totalCount = new AtomicInteger();
-    final List<Path> arrangedPaths = new CopyOnWriteArrayList<>();
-    sourceRoot.parseParallelized(
-        (localPath, absolutePath, parseResult) -> {
-          log.debug("Processing " + absolutePath);
-          totalCount.incrementAndGet();
-          final Optional<CompilationUnit> optCompUnit = parseResult.getResult();
-          if (!optCompUnit.isPresent()
-              || optCompUnit.get().getTypes() == null
-              || optCompUnit.get().getTypes().isEmpty()) {
-            log.warn("Failed to parse " + absolutePath);
-            return SourceRoot.Callback.Result.DONT_SAVE;
+  @SuppressWarnings("ReferenceEquality")
+  private static boolean shallowArrange(final TypeDeclaration<?> typeDec) {
+    final List<BodyDeclaration<?>> arrangedNodes = SHALLOW_ARRANGER.get().arrange(typeDec);
+    final NodeList<BodyDeclaration<?>> members = typeDec.getMembers();
+    // Compare by identity: the members are only reordered, and Node.equals compares deeply.
+    boolean sameOrder = arrangedNodes.size() == members.size();
+    for (int i = 0; sameOrder && i < members.size(); i++) {
+      sameOrder = arrangedNodes.get(i) == members.get(i);
+    }
+    if (sameOrder) {
+      return false;
+    }
+    // Sort the members in place. Replacing the list would detach and attach every member, and
+    // JavaParser detaches a node by scanning the linked list of its parent's children by index.
+    final IdentityHashMap<BodyDeclaration<?>, Integer> positions =
+        new IdentityHashMap<>(arrangedNodes.size());
+    for (int i = 0; i < arrangedNodes.size(); i++) {
+      positions.put(arrangedNodes.get(i), i);
+    }
+    members.sort(Comparator.comparingInt(positions::get));
+    return true;
+  }
+
+  /** Find the Java files and their attributes under the given root, skipping hidden directories. */
+  private static Map<Path, BasicFileAttributes> sourceFiles(final Path sourceRootDir)
+      throws IOException {
+    final Map<Path, BasicFileAttributes> sourceFiles = new LinkedHashMap<>();
+    Files.walkFileTree(
+        sourceRootDir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+              throws IOException {
+            if (!dir.equals(sourceRootDir) && Files.isHidden(dir)) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
           }
 
-          boolean didArrangement = false;
-          for (final TypeDeclaration<?> typeDec : optCompUnit.get().getTypes()) {
-            didArrangement |= deepArrange(typeDec);
+          @Override
+          public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+            if (attrs.isRegularFile() && file.toString().endsWith(".java")) {
+              sourceFiles.put(file, attrs);
+            }
+            return FileVisitResult.CONTINUE;
           }
+        });
+    return sourceFiles;
+  }
+
+  /** An executor that starts a virtual thread per task, if this Java version has them. */
+  private static Optional<ExecutorService> virtualThreadExecutor() {
+    try {
+      return Optional.of(
+          (ExecutorService)
+              Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+    } catch (ReflectiveOperationException e) {
+      return Optional.empty();
+    }
+  }
 
-          // Only modify the files where the order changed.
-          if (!didArrangement) {
-            return SourceRoot.Callback.Result.DONT_SAVE;
+  /**
+   * Arrange each Java file in the given source directory. This directory corresponds to the root of
+   * the package structure, e.g. proj/src/main/java or proj/src/test/java. The directory may live on
+   * any {@link java.nio.file.FileSystem}, such as an in-memory or zip file system.
+   */
+  ArrangementResult arrange(final Path sourceRootDir) {
+    final String module = sourceRootDir.toString();
+    return arrange(ImmutableMap.of(module, ImmutableList.of(sourceRootDir))).get(module);
+  }
+
+  /**
+   * Arrange the source directories of several modules in one pass. The files of every module share
+   * one parallel work queue, so no thread sits idle waiting for the next module to start. Returns
+   * the result of each module, in the order given.
+   */
+  @SneakyThrows
+  Map<String, ArrangementResult> arrange(final Map<String, List<Path>> sourceRootDirsByModule) {
+    final long start = System.nanoTime();
+    final boolean stamped = stampsFile != null && shard.isAll();
+    final SourceTreeStamps stamps =
+        stamped ? SourceTreeStamps.load(stampsFile) : SourceTreeStamps.empty();
+    final Map<Path, String> stampsBefore = new LinkedHashMap<>();
+    final List<SourceFile> sourceFiles = new ArrayList<>();
+    for (final Map.Entry<String, List<Path>> entry : sourceRootDirsByModule.entrySet()) {
+      for (final Path sourceRootDir : entry.getValue()) {
+        checkArgument(Files.exists(sourceRootDir), "File %s does not exist.", sourceRootDir);
+        checkArgument(
+            Files.isDirectory(sourceRootDir), "File %s is not a directory.", sourceRootDir);
+        final Map<Path, BasicFileAttributes> attrs = sourceFiles(sourceRootDir);
+        if (stamped) {
+          final String stamp = SourceTreeStamps.stamp(sourceRootDir, attrs, stampSettings());
+          if (stamps.isUnchanged(sourceRootDir, stamp)) {
+            log.info("Skipping " + attrs.size() + " files in unchanged " + sourceRootDir);
+            continue;
           }
+          stampsBefore.put(sourceRootDir, stamp);
+        }
+        for (final Path path : shard.select(sourceRootDir, new ArrayList<>(attrs.keySet()))) {
+          sourceFiles.add(
+              new SourceFile(entry.getKey(), sourceRootDir, path, attrs.get(path).size()));
+        }
+      }
+    }
 
-          log.debug("Arranged " + absolutePath);
-          arrangedPaths.add(absolutePath);
-          return SourceRoot.Callback.Result.SAVE;
-        });
+    // Workers take files from a FIFO queue, so they start them in scheduled order.
+    final FileCosts costs = FileCosts.load(costsFile);
+    final MemberFingerprints fingerprints =
+        useFingerprints()
+            ? MemberFingerprints.load(fingerprintsFile, pluginVersion)
+            : MemberFingerprints.empty(pluginVersion);
+    final ParseFailures parseFailures =
+        parseFailuresFile == null
+            ? ParseFailures.empty(parserProfile)
+            : ParseFailures.load(parseFailuresFile, parserProfile);
+    final SharedCache sharedCache =
+        sharedCacheDirectory == null
+            ? null
+            : new SharedCache(sharedCacheDirectory, log, sharedCacheMaxBytes, stampSettings());
+    final List<SourceFile> scheduled = schedule(sourceFiles, schedule, costs);
+    final Map<SourceFile, HashCode> arrangedFiles = new HashMap<>();
+    final Map<SourceFile, CompletableFuture<HashCode>> writes = new LinkedHashMap<>();
+    final Map<SourceFile, String> overLimitFiles = new ConcurrentHashMap<>();
+    final ExecutorService executor =
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder().setNameFormat("jarranger-%d").setDaemon(true).build());
+    // Workers log through a queue, so they never wait for the Maven logger or for each other.
+    final EventLog events = new EventLog(log, scheduled.size(), progressInterval);
+    final WorkerPool forked =
+        forkedWorkers > 0 && !scheduled.isEmpty()
+            ? WorkerPool.start(forkedWorkers, workerJvmArgs, format, parserProfile, fileTimeout)
+            : null;
+    final SourceWriter writer =
+        new SourceWriter(durability, threads, threads * FILES_IN_FLIGHT_PER_THREAD);
+    final ForkJoinPool typePool = new ForkJoinPool(threads);
+    final ExecutorService fileExecutor;
+    final Jarranger worker;
+    final Optional<ExecutorService> virtual =
+        virtualThreads ? virtualThreadExecutor() : Optional.empty();
+    if (virtual.isPresent()) {
+      fileExecutor = virtual.get();
+      worker =
+          toBuilder()
+              .log(events)
+              .workerPool(forked)
+              .writer(writer)
+              .cpuExecutor(executor)
+              .typePool(typePool)
+              .build();
+    } else {
+      if (virtualThreads) {
+        log.warn("Virtual threads need Java 21 or later, so every stage runs on the thread pool.");
+      }
+      fileExecutor = executor;
+      worker = toBuilder().log(events).workerPool(forked).writer(writer).typePool(typePool).build();
+    }
+    // Virtual threads are cheap, but each holds the content of its file.
+    final Semaphore inFlight = new Semaphore(threads * FILES_IN_FLIGHT_PER_THREAD);
+    final AdaptiveConcurrency concurrency =
+        adaptive ? new AdaptiveConcurrency(threads, heapCeiling, ADAPT_INTERVAL) : null;
+    // The failure that ended the run early, if any, and the failure to close the writer.
+    Throwable failure = null;
+    RuntimeException closeFailure = null;
+    try {
+      final List<Future<Optional<CompletableFuture<HashCode>>>> futures =
+          new ArrayList<>(scheduled.size());
+      for (final SourceFile sourceFile : scheduled) {
+        futures.add(
+            fileExecutor.submit(
+                () -> {
+                  inFlight.acquire();
+                  if (concurrency != null) {
+                    concurrency.acquire();
+                  }
+                  final long fileStart = System.nanoTime();
+                  final long allocatedBefore =
+                      phaseTimes == null ? 0 : PhaseTimes.threadAllocatedBytes();
+                  try {
+                    return worker.arrangeWithinLimits(
+                        sourceFile, fingerprints, parseFailures, sharedCache, overLimitFiles);
+                  } finally {
+                    costs.record(
+                        sourceFile.getPath(), sourceFile.getSize(), System.nanoTime() - fileStart);
+                    if (phaseTimes != null) {
+                      record(PhaseTimes.Phase.FILE, fileStart);
+                      phaseTimes.fileDone(
+                          sourceFile.getSize(),
+                          allocatedBefore < 0
+                              ? -1
+                              : PhaseTimes.threadAllocatedBytes() - allocatedBefore);
+                    }
+                    events.fileDone();
+                    if (concurrency != null) {
+                      concurrency.release(sourceFile.getSize());
+                    }
+                    inFlight.release();
+                  }
+                }));
+      }
+      for (int i = 0; i < scheduled.size(); i++) {
+        final SourceFile sourceFile = scheduled.get(i);
+        futures.get(i).get().ifPresent(write -> writes.put(sourceFile, write));
+      }
+    } catch (ExecutionException e) {
+      failure = e.getCause();
+      throw failure;
+    } catch (Throwable e) {
+      failure = e;
+      throw e;
+    } finally {
+      fileExecutor.shutdownNow();
+      executor.shutdownNow();
+      typePool.shutdownNow();
+      events.close();
+      if (concurrency != null) {
+        concurrency.close();
+      }
+      if (forked != null) {
+        forked.close();
+      }
+      // Whatever happened, no file is left half written. A failure to sync does not hide the
+      // failure that ended the run.
+      try {
+        writer.close();
+      } catch (RuntimeException e) {
+        closeFailure = e;
+        if (failure != null) {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (closeFailure != null) {
+      throw closeFailure;
+    }
+
+    final List<Throwable> writeErrors = new ArrayList<>();
+    for (final Map.Entry<SourceFile, CompletableFuture<HashCode>> write : writes.entrySet()) {
+      try {
+        arrangedFiles.put(write.getKey(), write.getValue().join());
+      } catch (CompletionException e) {
+        log.error("Failed to write " + write.getKey().getPath(), e.getCause());
+        writeErrors.add(e.getCause());
+      }
+    }
+    if (!writeErrors.isEmpty()) {
+      final IllegalStateException failed =
+          new IllegalStateException(
+              "Failed to write " + writeErrors.size() + " files.", writeErrors.get(0));
+      writeErrors.subList(1, writeErrors.size()).forEach(failed::addSuppressed);
+      throw failed;
+    }
 
-    for (Path arrangedPath : arrangedPaths) {
-      removeBlankLineAfterOpenBrace(arrangedPath);
+    if (costsFile != null) {
+      costs.save(costsFile);
+    }
+    if (useFingerprints()) {
+      fingerprints.save(fingerprintsFile);
+    }
+    if (parseFailuresFile != null) {
+      parseFailures.save(parseFailuresFile);
+    }
+    if (parseFailures.skipped() > 0) {
+      log.warn(
+          "Skipped "
+              + parseFailures.skipped()
+              + " files that failed to parse in an earlier run and have not changed since.");
+    }
+    if (sharedCache != null) {
+      sharedCache.evict();
+    }
+    if (stamped) {
+      // Roots with files over a limit are not stamped, so those files are tried again.
+      for (final SourceFile sourceFile : overLimitFiles.keySet()) {
+        stampsBefore.remove(sourceFile.getSourceRootDir());
+      }
+      // Rewritten files have new modification times, so their roots are stamped again.
+      final Set<Path> rewrittenRoots =
+          arrangedFiles.keySet().stream()
+              .map(SourceFile::getSourceRootDir)
+              .collect(Collectors.toSet());
+      for (final Map.Entry<Path, String> entry : stampsBefore.entrySet()) {
+        final Path sourceRootDir = entry.getKey();
+        stamps.record(
+            sourceRootDir,
+            rewrittenRoots.contains(sourceRootDir)
+                ? SourceTreeStamps.stamp(sourceRootDir, sourceFiles(sourceRootDir), stampSettings())
+                : entry.getValue());
+      }
+      stamps.save(stampsFile);
     }
+    final Optional<Map.Entry<String, Long>> slowest = costs.slowest();
+    log.info(
+        TimingReport.builder()
+            .schedule(schedule)
+            .threads(threads)
+            .files(scheduled.size())
+            .wallNanos(System.nanoTime() - start)
+            .busyNanos(costs.busyNanos())
+            .slowestFile(slowest.map(Map.Entry::getKey).orElse(null))
+            .slowestNanos(slowest.map(Map.Entry::getValue).orElse(0L))
+            .workerChanges(concurrency == null ? List.of() : concurrency.changes())
+            .build()
+            .summary());
 
-    return ArrangementResult.builder()
-        .total(totalCount.get())
-        .arranged(arrangedPaths.size())
-        .build();
+    final Map<String, ArrangementResult> results = new LinkedHashMap<>();
+    for (final String module : sourceRootDirsByModule.keySet()) {
+      results.put(module, ArrangementResult.EMPTY);
+    }
+    for (final SourceFile sourceFile : sourceFiles) {
+      final HashCode hash = arrangedFiles.get(sourceFile);
+      final String overLimitReason = overLimitFiles.get(sourceFile);
+      final String absolutePath = sourceFile.getPath().toAbsolutePath().toString();
+      results.merge(
+          sourceFile.getModule(),
+          ArrangementResult.builder()
+              .total(1)
+              .arranged(hash == null ? 0 : 1)
+              .changedFiles(
+                  hash == null
+                      ? ImmutableSortedMap.of()
+                      : ImmutableSortedMap.of(absolutePath, hash.toString()))
+              .overLimitFiles(
+                  overLimitReason == null
+                      ? ImmutableSortedMap.of()
+                      : ImmutableSortedMap.of(absolutePath, overLimitReason))
+              .build(),
+          ArrangementResult::add);
+    }
+    return results;
+  }
+
+  /**
+   * Parse and arrange the content of a file, and format it if asked to, unless this is the lean
+   * fallback. Returns empty if the content cannot be parsed.
+   */
+  @SneakyThrows
+  Optional<CharSequence> arrangeContent(
+      final Path absolutePath,
+      final SourceText original,
+      final Deadline deadline,
+      final boolean lean) {
+    if (workerPool != null) {
+      // The worker applies the time limit itself.
+      return workerPool.arrange(absolutePath, original, lean);
+    }
+    if (cpuExecutor != null) {
+      // This is a virtual thread, which waits while a platform thread does the work.
+      try {
+        return cpuExecutor
+            .submit(() -> parseAndArrange(absolutePath, original, deadline, lean))
+            .get();
+      } catch (ExecutionException e) {
+        throw e.getCause();
+      }
+    }
+    return parseAndArrange(absolutePath, original, deadline, lean);
+  }
+
+  /**
+   * Arrange a single file, unless its result is known. The file is read once and saved at most
+   * once, only if its content changed. Returns the pending write, which gives the SHA-256 hash of
+   * the saved content, or empty if the file is not saved.
+   */
+  @SneakyThrows
+  private Optional<CompletableFuture<HashCode>> arrangeFile(
+      final Path absolutePath,
+      final MemberFingerprints fingerprints,
+      final ParseFailures parseFailures,
+      final SharedCache sharedCache,
+      final Deadline deadline,
+      final boolean lean) {
+    if (log.isDebugEnabled()) {
+      log.debug("Processing " + absolutePath);
+    }
+    final long readStart = System.nanoTime();
+    final SourceText original = SourceText.read(absolutePath);
+    record(PhaseTimes.Phase.READ, readStart);
+    if (parseFailures.skip(absolutePath, original.bytes())) {
+      if (log.isDebugEnabled()) {
+        log.debug("Failed to parse in an earlier run: " + absolutePath);
+      }
+      return Optional.empty();
+    }
+    final HashCode fingerprint =
+        useFingerprints() ? MemberFingerprints.fingerprint(original) : null;
+    if (fingerprint != null && fingerprints.isArranged(absolutePath, fingerprint)) {
+      if (log.isDebugEnabled()) {
+        log.debug("Member headers unchanged in " + absolutePath);
+      }
+      return Optional.empty();
+    }
+
+    final HashCode sharedKey = sharedCache == null ? null : sharedCache.key(original.bytes());
+    Optional<CharSequence> arranged =
+        sharedKey == null ? Optional.empty() : sharedCache.get(sharedKey, original);
+    if (arranged.isPresent()) {
+      if (log.isDebugEnabled()) {
+        log.debug("Reused shared result for " + absolutePath);
+      }
+    } else {
+      arranged = arrangeContent(absolutePath, original, deadline, lean);
+      if (!arranged.isPresent()) {
+        parseFailures.record(absolutePath, original.bytes());
+        return Optional.empty();
+      }
+      if (sharedKey != null) {
+        sharedCache.put(sharedKey, original, arranged.get());
+      }
+    }
+    final CharSequence content = arranged.get();
+    final boolean changed = !original.contentEquals(content);
+
+    if (fingerprint != null) {
+      fingerprints.record(
+          absolutePath, changed ? MemberFingerprints.fingerprint(content) : fingerprint);
+    }
+
+    // Only modify the files whose content changed.
+    if (!changed) {
+      return Optional.empty();
+    }
+    if (dryRun) {
+      // Hash the content as the writer would, so the work is not optimized away.
+      return Optional.of(
+          CompletableFuture.completedFuture(
+              Hashing.sha256().hashString(content, StandardCharsets.UTF_8)));
+    }
+    return Optional.of(writer.write(absolutePath, content));
+  }
+
+  /**
+   * Arrange a file unless it is over the size limit, cancelling the work if it is over the time
+   * limit. The reason a file is over a limit is added to overLimitFiles.
+   */
+  private Optional<CompletableFuture<HashCode>> arrangeWithinLimits(
+      final SourceFile sourceFile,
+      final MemberFingerprints fingerprints,
+      final ParseFailures parseFailures,
+      final SharedCache sharedCache,
+      final Map<SourceFile, String> overLimitFiles) {
+    final Path absolutePath = sourceFile.getPath();
+    if (maxFileBytes > 0 && sourceFile.getSize() > maxFileBytes) {
+      final String reason = "larger than " + maxFileBytes + " bytes";
+      log.warn("Skipping " + absolutePath + ", which is " + reason);
+      overLimitFiles.put(sourceFile, reason);
+      return Optional.empty();
+    }
+    try {
+      return arrangeFile(
+          absolutePath,
+          fingerprints,
+          parseFailures,
+          sharedCache,
+          Deadline.after(fileTimeout),
+          false);
+    } catch (Deadline.Exceeded e) {
+      log.warn("Cancelled " + absolutePath + ": " + e.getMessage());
+    }
+    final String reason = "timed out after " + fileTimeout;
+    if (!fallback || !format) {
+      overLimitFiles.put(sourceFile, reason);
+      return Optional.empty();
+    }
+    try {
+      // The fallback result differs from the shared ones, so it is not shared.
+      final Optional<CompletableFuture<HashCode>> write =
+          arrangeFile(
+              absolutePath, fingerprints, parseFailures, null, Deadline.after(fileTimeout), true);
+      log.warn("Arranged " + absolutePath + " without formatting");
+      overLimitFiles.put(sourceFile, reason + ", arranged by the fallback");
+      return write;
+    } catch (Deadline.Exceeded e) {
+      log.warn("Cancelled the fallback for " + absolutePath + ": " + e.getMessage());
+      overLimitFiles.put(sourceFile, reason + ", also by the fallback");
+      return Optional.empty();
+    }
+  }
+
+  /** Format with google-java-format, keeping the input if it cannot be formatted. */
+  private String format(final Path absolutePath, final String source) {
+    try {
+      return new Formatter().formatSourceAndFixImports(source);
+    } catch (FormatterException e) {
+      log.warn("Failed to format " + absolutePath + ": " + e.getMessage());
+      return source;
+    }
+  }
+
+  /** Arrange the content of a file on this thread, as described for arrangeContent(). */
+  private Optional<CharSequence> parseAndArrange(
+      final Path absolutePath,
+      final SourceText original,
+      final Deadline deadline,
+      final boolean lean) {
+    final long parseStart = System.nanoTime();
+    final ParseResult<CompilationUnit> parseResult =
+        (lean ? LEAN_PARSER.get() : parser())
+            .parse(
+                ParseStart.COMPILATION_UNIT, Providers.provider(deadline.wrap(original.reader())));
+    // The parser reports an exceeded deadline as a problem, so check it again.
+    deadline.check();
+    record(PhaseTimes.Phase.PARSE, parseStart);
+    final Optional<CompilationUnit> optCompUnit = parseResult.getResult();
+    if (!optCompUnit.isPresent()
+        || optCompUnit.get().getTypes() == null
+        || optCompUnit.get().getTypes().isEmpty()) {
+      log.warn("Failed to parse " + absolutePath);
+      return Optional.empty();
+    }
+
+    final long arrangeStart = System.nanoTime();
+    final boolean didArrangement = deepArrangeAll(optCompUnit.get().getTypes(), deadline, typePool);
+    record(PhaseTimes.Phase.ARRANGE, arrangeStart);
+
+    CharSequence content = original;
+    if (didArrangement) {
+      if (log.isDebugEnabled()) {
+        log.debug("Arranged " + absolutePath);
+      }
+      deadline.check();
+      final long printStart = System.nanoTime();
+      content = removeBlankLineAfterOpenBrace(PRINTER.print(optCompUnit.get()));
+      record(PhaseTimes.Phase.PRINT, printStart);
+    }
+    if (format && !lean) {
+      deadline.check();
+      final long formatStart = System.nanoTime();
+      content = format(absolutePath, content.toString());
+      record(PhaseTimes.Phase.FORMAT, formatStart);
+    }
+    return Optional.of(content);
+  }
+
+  private JavaParser parser() {
+    if (parserProfile == ParserProfile.LEAN) {
+      return LEAN_PARSER.get();
+    }
+    return new JavaParser();
+  }
+
+  /** Record the time from the start until now in the phase, if phases are recorded. */
+  private void record(final PhaseTimes.Phase phase, final long startNanos) {
+    if (phaseTimes != null) {
+      phaseTimes.record(phase, System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * The plugin version and the settings that change the output, so a root is arranged again when
+   * either changes, such as after an upgrade with new ordering rules.
+   */
+  private String stampSettings() {
+    return pluginVersion + "/" + (format ? "format" : "arrange");
+  }
+
+  /** Formatting depends on method bodies too, so fingerprints of member headers do not apply. */
+  private boolean useFingerprints() {
+    return fingerprintsFile != null && !format;
   }
 
   @Value
   @Builder
   static final class ArrangementResult {
-    public static final ArrangementResult EMPTY = new ArrangementResult(0, 0);
+    public static final ArrangementResult EMPTY =
+        new ArrangementResult(0, 0, ImmutableSortedMap.of(), ImmutableSortedMap.of());
 
     private final int total;
 
     private final int arranged;
 
+    /** SHA-256 hash of the content written to each rewritten file, by absolute path. */
+    @Builder.Default
+    private final ImmutableSortedMap<String, String> changedFiles = ImmutableSortedMap.of();
+
+    /**
+     * Why each file over the size or time limit was skipped or arranged by the fallback, by
+     * absolute path.
+     */
+    @Builder.Default
+    private final ImmutableSortedMap<String, String> overLimitFiles = ImmutableSortedMap.of();
+
+    /** Read a result written by toProperties(). */
+    public static ArrangementResult fromProperties(final Properties properties) {
+      return builder()
+          .total(Integer.parseInt(properties.getProperty("total", "0")))
+          .arranged(Integer.parseInt(properties.getProperty("arranged", "0")))
+          .build();
+    }
+
     public ArrangementResult add(final ArrangementResult other) {
-      return builder().total(total + other.total).arranged(arranged + other.arranged).build();
+      final Map<String, String> mergedChangedFiles = new HashMap<>(changedFiles);
+      mergedChangedFiles.putAll(other.changedFiles);
+      final Map<String, String> mergedOverLimitFiles = new HashMap<>(overLimitFiles);
+      mergedOverLimitFiles.putAll(other.overLimitFiles);
+      return builder()
+          .total(total + other.total)
+          .arranged(arranged + other.arranged)
+          .changedFiles(ImmutableSortedMap.copyOf(mergedChangedFiles))
+          .overLimitFiles(ImmutableSortedMap.copyOf(mergedOverLimitFiles))
+          .build();
     }
+
+    /** The counts only, e.g. for a shard result. */
+    public Properties toProperties() {
+      final Properties properties = new Properties();
+      properties.setProperty("total", Integer.toString(total));
+      properties.setProperty("arranged", Integer.toString(arranged));
+      return properties;
+    }
+  }
+
+  /** A Java file, its size, and the module and source root it belongs to. */
+  @Value
+  private static final class SourceFile {
+    private final String module;
+
+    private final Path sourceRootDir;
+
+    private final Path path;
+
+    private final long size;
   }
 }
@@ -0,0 +1,92 @@
+package gov.va.jarranger;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Arrange the sources of every module in the reactor in a single pass. Runs once, at the reactor
+ * root, and feeds the files of all modules into one parallel work queue. The files rewritten in all
+ * modules are published as by the arrange goal, in the output directory of the root.
+ */
+@NoArgsConstructor
+@Mojo(name = "arrange-aggregate", aggregator = true, threadSafe = true)
+final class JarrangerAggregateMojo extends AbstractArrangeMojo {
+  @Parameter(defaultValue = "${reactorProjects}", readonly = true, required = true)
+  private List<MavenProject> reactorProjects;
+
+  @Builder
+  private JarrangerAggregateMojo(
+      final Log log, final Map<?, ?> pluginContext, final List<MavenProject> reactorProjects) {
+    super();
+    setLog(log);
+    setPluginContext(pluginContext);
+    this.reactorProjects = reactorProjects;
+  }
+
+  private static void addIfExists(final List<Path> sourceRootDirs, final String directory) {
+    if (directory != null && new File(directory).isDirectory()) {
+      sourceRootDirs.add(new File(directory).toPath());
+    }
+  }
+
+  /** Arrange the whole reactor. Returns the result of each module, keyed by its id. */
+  Map<String, Jarranger.ArrangementResult> arrange() {
+    if (isSkip()) {
+      getLog().info("Skipping arrangement because property 'jarranger.skip' is set.");
+      return Map.of();
+    }
+
+    final Map<String, List<Path>> sourceRootDirsByModule = new LinkedHashMap<>();
+    for (final MavenProject project : reactorProjects) {
+      if ("pom".equals(project.getPackaging())) {
+        continue;
+      }
+      final List<Path> sourceRootDirs = new ArrayList<>(2);
+      addIfExists(sourceRootDirs, project.getBuild().getSourceDirectory());
+      addIfExists(sourceRootDirs, project.getBuild().getTestSourceDirectory());
+      sourceRootDirsByModule.put(project.getId(), sourceRootDirs);
+    }
+
+    final Map<String, Jarranger.ArrangementResult> results =
+        configure().build().arrange(sourceRootDirsByModule);
+    Jarranger.ArrangementResult total = Jarranger.ArrangementResult.EMPTY;
+    for (final Map.Entry<String, Jarranger.ArrangementResult> entry : results.entrySet()) {
+      final Jarranger.ArrangementResult result = entry.getValue();
+      getLog()
+          .info(
+              entry.getKey()
+                  + ": processed "
+                  + result.getTotal()
+                  + " files ("
+                  + result.getArranged()
+                  + " arranged).");
+      total = total.add(result);
+    }
+    getLog()
+        .info(
+            "Processed "
+                + total.getTotal()
+                + " files ("
+                + total.getArranged()
+                + " arranged) in "
+                + results.size()
+                + " modules.");
+    JarrangerMojo.publishChangedFiles(getPluginContext(), getOutputDirectory(), total);
+    return results;
+  }
+
+  @Override
+  public void execute() {
+    arrange();
+  }
+}
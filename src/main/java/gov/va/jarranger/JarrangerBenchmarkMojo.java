@@ -0,0 +1,191 @@
+package gov.va.jarranger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.MoreFiles;
+import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+import lombok.SneakyThrows;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Measure how fast the project's own sources are arranged. The whole pipeline runs in memory over
+ * the source roots, a number of times to warm up and then a number of times to measure, and never
+ * changes a file. Nothing is cached between runs, so each run does all the work.
+ *
+ * <p>The results are logged and written as properties, so that plugin versions and settings can be
+ * compared: files and megabytes per second, the 50th, 90th and 99th percentile and maximum time of
+ * each phase per file, and the bytes allocated per file.
+ */
+@NoArgsConstructor
+@Mojo(name = "benchmark", threadSafe = true)
+final class JarrangerBenchmarkMojo extends AbstractJarrangerMojo {
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 1};
+
+  @Parameter(defaultValue = "${project.artifactId}", readonly = true)
+  private String artifactId;
+
+  @Parameter(
+      defaultValue = "${project.build.sourceDirectory}",
+      property = "sourceDirectory",
+      required = true)
+  private File sourceDirectory;
+
+  @Parameter(
+      defaultValue = "${project.build.testSourceDirectory}",
+      property = "testSourceDirectory",
+      required = true)
+  private File testSourceDirectory;
+
+  /** Where the results are written, as properties. */
+  @Parameter(
+      defaultValue = "${project.build.directory}/jarranger/benchmark.properties",
+      property = "jarranger.benchmarkFile")
+  private File benchmarkFile;
+
+  /** Runs before measuring, so the JIT compiler has compiled the hot paths. */
+  @Parameter(defaultValue = "2", property = "jarranger.warmupIterations")
+  private int warmupIterations = 2;
+
+  /** Runs that are measured. */
+  @Parameter(defaultValue = "5", property = "jarranger.iterations")
+  private int iterations = 5;
+
+  /** The number of worker threads. Defaults to the number of processors. */
+  @Parameter(property = "jarranger.threads")
+  private Integer threads;
+
+  @Builder
+  private JarrangerBenchmarkMojo(
+      final Log log,
+      final Map<?, ?> pluginContext,
+      final String artifactId,
+      final File sourceDirectory,
+      final File testSourceDirectory,
+      final File benchmarkFile,
+      final Integer warmupIterations,
+      final Integer iterations,
+      final Integer threads) {
+    super();
+    setLog(log);
+    setPluginContext(pluginContext);
+    this.artifactId = artifactId;
+    this.sourceDirectory = sourceDirectory;
+    this.testSourceDirectory = testSourceDirectory;
+    this.benchmarkFile = benchmarkFile;
+    this.warmupIterations = warmupIterations == null ? 2 : warmupIterations;
+    this.iterations = iterations == null ? 5 : iterations;
+    this.threads = threads;
+  }
+
+  private static String millis(final long nanos) {
+    return String.format(Locale.US, "%.3f", nanos / 1e6);
+  }
+
+  /**
+   * An arranger that changes no file and keeps nothing between runs, so each run does all the work.
+   */
+  private Jarranger arranger(final PhaseTimes phaseTimes) {
+    return configure().threads(threads()).dryRun(true).phaseTimes(phaseTimes).build();
+  }
+
+  /** Run the benchmark. Returns the results, as written to the benchmark file. */
+  @SneakyThrows
+  Properties benchmark() {
+    checkArgument(iterations > 0, "Expected at least one measured iteration, got %s.", iterations);
+    final List<Path> sourceRootDirs = new ArrayList<>(2);
+    for (final File directory : new File[] {sourceDirectory, testSourceDirectory}) {
+      if (directory != null && directory.isDirectory()) {
+        sourceRootDirs.add(directory.toPath());
+      }
+    }
+    final Map<String, List<Path>> sourceRootDirsByModule =
+        ImmutableMap.of(artifactId == null ? "benchmark" : artifactId, sourceRootDirs);
+    for (int i = 0; i < warmupIterations; i++) {
+      getLog().info("Warm-up " + (i + 1) + " of " + warmupIterations + ".");
+      arranger(null).arrange(sourceRootDirsByModule);
+    }
+    final PhaseTimes phaseTimes = new PhaseTimes();
+    final Jarranger arranger = arranger(phaseTimes);
+    long wallNanos = 0;
+    for (int i = 0; i < iterations; i++) {
+      getLog().info("Iteration " + (i + 1) + " of " + iterations + ".");
+      final long start = System.nanoTime();
+      arranger.arrange(sourceRootDirsByModule);
+      wallNanos += System.nanoTime() - start;
+    }
+    final double seconds = wallNanos / 1e9;
+    final Properties results = new Properties();
+    results.setProperty(
+        "pluginVersion", getPluginVersion() == null ? "unknown" : getPluginVersion());
+    results.setProperty("javaVersion", System.getProperty("java.version"));
+    results.setProperty("threads", Integer.toString(threads()));
+    results.setProperty("schedule", getSchedule().name());
+    results.setProperty("parserProfile", getParserProfile().name());
+    results.setProperty("format", Boolean.toString(isFormat()));
+    results.setProperty("warmupIterations", Integer.toString(warmupIterations));
+    results.setProperty("iterations", Integer.toString(iterations));
+    results.setProperty("files", Long.toString(phaseTimes.files() / iterations));
+    results.setProperty("bytes", Long.toString(phaseTimes.bytes() / iterations));
+    results.setProperty(
+        "filesPerSecond", String.format(Locale.US, "%.1f", phaseTimes.files() / seconds));
+    results.setProperty(
+        "megabytesPerSecond",
+        String.format(Locale.US, "%.3f", phaseTimes.bytes() / seconds / (1 << 20)));
+    results.setProperty("allocatedBytesPerFile", Long.toString(phaseTimes.allocatedBytesPerFile()));
+    for (final PhaseTimes.Phase phase : PhaseTimes.Phase.values()) {
+      if (phaseTimes.samples(phase) == 0) {
+        continue;
+      }
+      final String name = phase.name().toLowerCase(Locale.ROOT);
+      final List<String> summary = new ArrayList<>(PERCENTILES.length);
+      for (final double percentile : PERCENTILES) {
+        final String key = percentile == 1 ? "max" : "p" + Math.round(percentile * 100);
+        final String value = millis(phaseTimes.percentile(phase, percentile));
+        results.setProperty(name + "." + key + "Millis", value);
+        summary.add(key + " " + value);
+      }
+      getLog().info("Phase " + name + " (ms per file): " + String.join(", ", summary) + ".");
+    }
+    getLog()
+        .info(
+            String.format(
+                Locale.US,
+                "Arranged %s files per run: %s files/s, %s MB/s, %s bytes allocated per file.",
+                results.getProperty("files"),
+                results.getProperty("filesPerSecond"),
+                results.getProperty("megabytesPerSecond"),
+                results.getProperty("allocatedBytesPerFile")));
+    if (benchmarkFile != null) {
+      MoreFiles.createParentDirectories(benchmarkFile.toPath());
+      try (Writer writer =
+          Files.newBufferedWriter(benchmarkFile.toPath(), StandardCharsets.UTF_8)) {
+        results.store(writer, "jarranger benchmark");
+      }
+      getLog().info("Wrote benchmark results to " + benchmarkFile);
+    }
+    return results;
+  }
+
+  @Override
+  public void execute() {
+    benchmark();
+  }
+
+  private int threads() {
+    return threads == null ? Runtime.getRuntime().availableProcessors() : threads;
+  }
+}
@@ -0,0 +1,136 @@
+package gov.va.jarranger;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+import lombok.SneakyThrows;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Combine the partial results written by each shard of a sharded {@code arrange} run into a single
+ * {@code arrangement.properties}. A module is known by its artifactId across the whole directory,
+ * so the results of its shards may be spread over subdirectories, such as one for each CI node.
+ * Fails if the results of any shard are missing, or if a shard has results in two places.
+ */
+@NoArgsConstructor
+@Mojo(name = "merge", threadSafe = true, requiresProject = false)
+final class JarrangerMergeMojo extends AbstractMojo {
+  /** Directory that holds the shard results. Searched recursively. */
+  @Parameter(
+      defaultValue = "${project.build.directory}/jarranger",
+      property = "jarranger.shardResults",
+      required = true)
+  private File shardResultsDirectory;
+
+  @Builder
+  private JarrangerMergeMojo(
+      final Log log, final Map<?, ?> pluginContext, final File shardResultsDirectory) {
+    super();
+    setLog(log);
+    setPluginContext(pluginContext);
+    this.shardResultsDirectory = shardResultsDirectory;
+  }
+
+  @SneakyThrows
+  private static Properties load(final Path resultFile) {
+    final Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(resultFile, StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    }
+    return properties;
+  }
+
+  @Override
+  public void execute() {
+    merge();
+  }
+
+  @SneakyThrows
+  Jarranger.ArrangementResult merge() {
+    final Path directory = shardResultsDirectory.toPath();
+    final List<Path> resultFiles;
+    try (Stream<Path> paths = Files.walk(directory)) {
+      resultFiles =
+          paths
+              .filter(
+                  p ->
+                      Files.isRegularFile(p)
+                          && Shard.RESULT_FILE_NAME.matcher(p.toFile().getName()).matches())
+              .sorted()
+              .collect(Collectors.toList());
+    }
+    checkState(!resultFiles.isEmpty(), "No shard results found in %s.", directory);
+
+    // The shards of each module must be complete. A shard found twice, such as a stale copy in
+    // another directory, would be counted twice.
+    final Map<String, Integer> shardCounts = new LinkedHashMap<>();
+    final Map<String, BitSet> seen = new LinkedHashMap<>();
+    final Map<String, Path> firstByShard = new HashMap<>();
+    Jarranger.ArrangementResult result = Jarranger.ArrangementResult.EMPTY;
+    for (final Path resultFile : resultFiles) {
+      final Matcher matcher = Shard.RESULT_FILE_NAME.matcher(resultFile.toFile().getName());
+      checkState(matcher.matches());
+      final String module = matcher.group("module");
+      final int index = Integer.parseInt(matcher.group("index"));
+      final int count = Integer.parseInt(matcher.group("count"));
+      final Path first = firstByShard.putIfAbsent(module + "#" + index, resultFile);
+      checkState(
+          first == null,
+          "Duplicate results for shard %s of %s: %s and %s.",
+          index,
+          module,
+          first,
+          resultFile);
+      final int shardCount = shardCounts.computeIfAbsent(module, m -> count);
+      checkState(
+          shardCount == count,
+          "Shard result %s is for %s shards, but others are for %s.",
+          resultFile,
+          count,
+          shardCount);
+      seen.computeIfAbsent(module, m -> new BitSet()).set(index);
+      result = result.add(Jarranger.ArrangementResult.fromProperties(load(resultFile)));
+    }
+    for (final Map.Entry<String, BitSet> entry : seen.entrySet()) {
+      final BitSet missing = new BitSet();
+      missing.set(0, shardCounts.get(entry.getKey()));
+      missing.andNot(entry.getValue());
+      checkState(
+          missing.isEmpty(), "Missing results for shards %s of %s.", missing, entry.getKey());
+    }
+
+    final Path mergedFile = directory.resolve("arrangement.properties");
+    try (Writer writer = Files.newBufferedWriter(mergedFile, StandardCharsets.UTF_8)) {
+      result.toProperties().store(writer, "jarranger merged result");
+    }
+    getLog()
+        .info(
+            "Merged "
+                + resultFiles.size()
+                + " shard results: processed "
+                + result.getTotal()
+                + " files ("
+                + result.getArranged()
+                + " arranged).");
+    return result;
+  }
+}
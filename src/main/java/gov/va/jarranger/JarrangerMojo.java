@@ -1,17 +1,38 @@
 package gov.va.jarranger;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.MoreFiles;
 import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import lombok.Builder;
 import lombok.NoArgsConstructor;
-import org.apache.maven.plugin.AbstractMojo;
+import lombok.SneakyThrows;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 
 @NoArgsConstructor
 @Mojo(name = "arrange", threadSafe = true)
-final class JarrangerMojo extends AbstractMojo {
+final class JarrangerMojo extends AbstractArrangeMojo {
+  /**
+   * Plugin context key of the files rewritten by the last run: a sorted map from absolute path to
+   * the SHA-256 hash of the new content.
+   */
+  public static final String CHANGED_FILES = "jarranger.changedFiles";
+
+  /** Name of the manifest of rewritten files, in the output directory. */
+  public static final String CHANGED_FILES_MANIFEST = "changed-files.sha256";
+
+  @Parameter(defaultValue = "${project.artifactId}", readonly = true)
+  private String artifactId;
+
   @Parameter(defaultValue = "${project.packaging}", required = true)
   private String packaging;
 
@@ -27,28 +48,65 @@ final class JarrangerMojo extends AbstractMojo {
       required = true)
   private File testSourceDirectory;
 
-  @Parameter(defaultValue = "false", property = "jarranger.skip")
-  private boolean skip = false;
+  @Parameter(defaultValue = "0", property = "jarranger.shardIndex")
+  private int shardIndex = 0;
+
+  @Parameter(defaultValue = "1", property = "jarranger.shardCount")
+  private int shardCount = 1;
+
+  @Parameter(defaultValue = "false", property = "jarranger.shardBySize")
+  private boolean shardBySize = false;
 
   @Builder
   private JarrangerMojo(
       final Log log,
       final Map<?, ?> pluginContext,
+      final String artifactId,
       final String packaging,
       final File sourceDirectory,
       final File testSourceDirectory,
-      final boolean skip) {
+      final int shardIndex,
+      final Integer shardCount,
+      final boolean shardBySize) {
     super();
     setLog(log);
     setPluginContext(pluginContext);
+    this.artifactId = artifactId;
     this.packaging = packaging;
     this.sourceDirectory = sourceDirectory;
     this.testSourceDirectory = testSourceDirectory;
-    this.skip = skip;
+    this.shardIndex = shardIndex;
+    this.shardCount = shardCount == null ? 1 : shardCount;
+    this.shardBySize = shardBySize;
+  }
+
+  /**
+   * Share the rewritten files with later steps of the build, both in the plugin context and as a
+   * manifest in the format of sha256sum in the output directory, so they can skip unchanged files.
+   */
+  @SneakyThrows
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  static void publishChangedFiles(
+      final Map pluginContext,
+      final File outputDirectory,
+      final Jarranger.ArrangementResult result) {
+    if (pluginContext != null) {
+      pluginContext.put(CHANGED_FILES, result.getChangedFiles());
+    }
+    if (outputDirectory == null) {
+      return;
+    }
+    final Path manifest = outputDirectory.toPath().resolve(CHANGED_FILES_MANIFEST);
+    MoreFiles.createParentDirectories(manifest);
+    try (Writer writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+      for (final Map.Entry<String, String> entry : result.getChangedFiles().entrySet()) {
+        writer.write(entry.getValue() + "  " + entry.getKey() + "\n");
+      }
+    }
   }
 
   Jarranger.ArrangementResult arrange() {
-    if (skip) {
+    if (isSkip()) {
       getLog().info("Skipping arrangement because property 'jarranger.skip' is set.");
       return Jarranger.ArrangementResult.EMPTY;
     }
@@ -58,24 +116,31 @@ final class JarrangerMojo extends AbstractMojo {
       return Jarranger.ArrangementResult.EMPTY;
     }
 
-    final Jarranger arranger = Jarranger.builder().log(getLog()).build();
-    Jarranger.ArrangementResult result = Jarranger.ArrangementResult.EMPTY;
-
+    final Shard shard = new Shard(shardIndex, shardCount, shardBySize);
+    final Jarranger arranger = configure().shard(shard).build();
+    final List<Path> sourceRootDirs = new ArrayList<>(2);
     if (sourceDirectory != null && sourceDirectory.exists()) {
-      result = result.add(arranger.arrange(sourceDirectory));
+      sourceRootDirs.add(sourceDirectory.toPath());
     } else {
       getLog().warn("Source directory '" + sourceDirectory + "' does not exist, ignoring.");
     }
 
     if (testSourceDirectory != null && testSourceDirectory.exists()) {
-      result = result.add(arranger.arrange(testSourceDirectory));
+      sourceRootDirs.add(testSourceDirectory.toPath());
     } else {
       getLog()
           .warn("Test source directory '" + testSourceDirectory + "' does not exist, ignoring.");
     }
 
+    final String module = artifactId == null ? "arrangement" : artifactId;
+    final Jarranger.ArrangementResult result =
+        arranger.arrange(ImmutableMap.of(module, sourceRootDirs)).get(module);
     getLog()
         .info("Processed " + result.getTotal() + " files (" + result.getArranged() + " arranged).");
+    if (!shard.isAll()) {
+      writeShardResult(shard, module, result);
+    }
+    publishChangedFiles(getPluginContext(), getOutputDirectory(), result);
     return result;
   }
 
@@ -83,4 +148,21 @@ final class JarrangerMojo extends AbstractMojo {
   public void execute() {
     arrange();
   }
+
+  @SneakyThrows
+  private void writeShardResult(
+      final Shard shard, final String module, final Jarranger.ArrangementResult result) {
+    if (getOutputDirectory() == null) {
+      return;
+    }
+    final Properties properties = result.toProperties();
+    properties.setProperty("shard.index", Integer.toString(shard.getIndex()));
+    properties.setProperty("shard.count", Integer.toString(shard.getCount()));
+    final Path resultFile = getOutputDirectory().toPath().resolve(shard.resultFileName(module));
+    MoreFiles.createParentDirectories(resultFile);
+    try (Writer writer = Files.newBufferedWriter(resultFile, StandardCharsets.UTF_8)) {
+      properties.store(writer, "jarranger shard result");
+    }
+    getLog().info("Wrote shard result to " + resultFile);
+  }
 }
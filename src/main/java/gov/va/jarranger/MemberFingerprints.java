@@ -0,0 +1,246 @@
+package gov.va.jarranger;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Fingerprints of the member headers of each file that was found to be arranged. The order of
+ * members depends only on their headers, so a file whose fingerprint still matches can be skipped
+ * without parsing, even if a method body or field initializer changed.
+ *
+ * <p>A fingerprint is a hash of the tokens outside of method bodies, initializer blocks and field
+ * initializers, found by a lexical scan. Comments and whitespace are ignored. Member types are
+ * scanned recursively, since their members are arranged too. Fingerprints are kept in a {@link
+ * DigestIndex}, keyed by absolute path, and hashed together with the plugin version, since another
+ * version may order members differently.
+ */
+final class MemberFingerprints {
+  /**
+   * The characters that start the only tokens that matter in a skipped body: braces, and the
+   * strings, character literals and comments that may hold braces.
+   */
+  private static final ByteScanner BODY_TOKENS = ByteScanner.anyOf("{}\"'/");
+
+  private static final ByteScanner NEWLINE = ByteScanner.anyOf("\n");
+
+  private static final ByteScanner STAR = ByteScanner.anyOf("*");
+
+  private final DigestIndex index;
+
+  /** Plugin version, hashed into every recorded fingerprint. */
+  private final String salt;
+
+  private MemberFingerprints(final DigestIndex index, final String pluginVersion) {
+    this.index = index;
+    this.salt = pluginVersion;
+  }
+
+  static MemberFingerprints empty(final String pluginVersion) {
+    return new MemberFingerprints(DigestIndex.empty(), pluginVersion);
+  }
+
+  /**
+   * The index of the next target character from the start, or the length of the source if there is
+   * none. Scans the bytes, if given, a word at a time.
+   */
+  private static int find(
+      final ByteScanner scanner,
+      final CharSequence source,
+      final ByteBuffer bytes,
+      final int start) {
+    return bytes == null
+        ? scanner.find(source, start, source.length())
+        : scanner.find(bytes, start, source.length());
+  }
+
+  /**
+   * Fingerprint the member headers of a Java source file. The source is scanned a word at a time
+   * where it can be, if it is the ASCII text of a file.
+   */
+  static HashCode fingerprint(final CharSequence source) {
+    final ByteBuffer bytes =
+        source instanceof SourceText ? ((SourceText) source).asciiBytes().orElse(null) : null;
+    final Hasher hasher = Hashing.sha256().newHasher();
+    // One entry per open type body: whether it is an enum whose constants are still being read.
+    final Deque<Boolean> typeBodies = new ArrayDeque<>();
+    typeBodies.push(false);
+    String typeKeyword = null;
+    String previous = "";
+    boolean inInitializer = false;
+    boolean memberEndsWithBody = false;
+    int parenDepth = 0;
+    int skipDepth = 0;
+    int pos = 0;
+    while (pos < source.length()) {
+      if (skipDepth > 0) {
+        // Skip a body, up to its closing brace, without reading the tokens between braces.
+        pos = find(BODY_TOKENS, source, bytes, pos);
+        if (pos == source.length()) {
+          break;
+        }
+        final char c = source.charAt(pos);
+        if (c == '{') {
+          skipDepth++;
+          pos++;
+        } else if (c == '}') {
+          skipDepth--;
+          pos++;
+          if (skipDepth == 0) {
+            if (memberEndsWithBody) {
+              hasher.putString(";", StandardCharsets.UTF_8).putByte((byte) 0);
+              typeKeyword = null;
+            }
+            previous = "}";
+          }
+        } else {
+          pos = tokenEnd(source, bytes, pos);
+        }
+        continue;
+      }
+
+      final int end = tokenEnd(source, bytes, pos);
+      final String token = source.subSequence(pos, end).toString();
+      pos = end;
+      if (token.isBlank() || token.startsWith("//") || token.startsWith("/*")) {
+        continue;
+      }
+
+      if (token.equals("{")) {
+        if (parenDepth > 0 || inInitializer || previous.equals("default")) {
+          // Array or class body in an initializer, an annotation value, or a default value.
+          skipDepth = 1;
+          memberEndsWithBody = false;
+        } else if (typeKeyword != null) {
+          typeBodies.push(typeKeyword.equals("enum"));
+          typeKeyword = null;
+        } else {
+          // Method or constructor body, initializer block, or the body of an enum constant.
+          skipDepth = 1;
+          memberEndsWithBody = !typeBodies.peek();
+        }
+      } else if (token.equals("}") && parenDepth == 0 && !inInitializer) {
+        if (typeBodies.size() > 1) {
+          typeBodies.pop();
+        }
+        typeKeyword = null;
+      } else if (token.equals(";") && parenDepth == 0) {
+        if (typeBodies.peek()) {
+          typeBodies.pop();
+          typeBodies.push(false);
+        }
+        typeKeyword = null;
+        inInitializer = false;
+      } else if (token.equals("(")) {
+        parenDepth++;
+      } else if (token.equals(")")) {
+        parenDepth = Math.max(0, parenDepth - 1);
+      } else if (token.equals("=") && parenDepth == 0) {
+        inInitializer = true;
+      } else if ((token.equals("class") || token.equals("interface") || token.equals("enum"))
+          && parenDepth == 0
+          && !inInitializer
+          && !previous.equals(".")) {
+        typeKeyword = token;
+      }
+      if (!inInitializer || token.equals(";") || token.equals("=")) {
+        hasher.putString(token, StandardCharsets.UTF_8).putByte((byte) 0);
+      }
+      previous = token;
+    }
+    return hasher.hash();
+  }
+
+  private static long key(final Path sourceFile) {
+    return DigestIndex.key(sourceFile.toAbsolutePath().toString());
+  }
+
+  /**
+   * Open the fingerprints recorded by an earlier run. A missing or unreadable file yields no
+   * fingerprints.
+   */
+  static MemberFingerprints load(final Path fingerprintsFile, final String pluginVersion) {
+    return new MemberFingerprints(DigestIndex.open(fingerprintsFile), pluginVersion);
+  }
+
+  private static boolean startsWith(
+      final CharSequence source, final String prefix, final int start) {
+    if (start + prefix.length() > source.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (source.charAt(start + i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * End of the token that starts at the given position. A token is a run of whitespace, a comment,
+   * a string, text block or character literal, a word, or a single other character.
+   */
+  private static int tokenEnd(final CharSequence source, final ByteBuffer bytes, final int start) {
+    final char c = source.charAt(start);
+    final int length = source.length();
+    int pos = start + 1;
+    if (Character.isWhitespace(c)) {
+      while (pos < length && Character.isWhitespace(source.charAt(pos))) {
+        pos++;
+      }
+    } else if (startsWith(source, "//", start)) {
+      pos = find(NEWLINE, source, bytes, pos);
+    } else if (startsWith(source, "/*", start)) {
+      pos = find(STAR, source, bytes, start + 2);
+      while (pos < length && !startsWith(source, "*/", pos)) {
+        pos = find(STAR, source, bytes, pos + 1);
+      }
+      pos = Math.min(length, pos + 2);
+    } else if (startsWith(source, "\"\"\"", start)) {
+      pos = start + 3;
+      while (pos < length && !startsWith(source, "\"\"\"", pos)) {
+        pos += source.charAt(pos) == '\\' ? 2 : 1;
+      }
+      pos = Math.min(length, pos + 3);
+    } else if (c == '"' || c == '\'') {
+      while (pos < length && source.charAt(pos) != c && source.charAt(pos) != '\n') {
+        pos += source.charAt(pos) == '\\' ? 2 : 1;
+      }
+      pos = Math.min(length, pos + 1);
+    } else if (Character.isJavaIdentifierPart(c)) {
+      while (pos < length && Character.isJavaIdentifierPart(source.charAt(pos))) {
+        pos++;
+      }
+    }
+    return pos;
+  }
+
+  /** Whether the file was arranged by this plugin version when it last had the fingerprint. */
+  boolean isArranged(final Path sourceFile, final HashCode fingerprint) {
+    return index.contains(key(sourceFile), salted(fingerprint));
+  }
+
+  /** Remember the fingerprint of a file that is arranged. Safe to call from any thread. */
+  void record(final Path sourceFile, final HashCode fingerprint) {
+    index.put(key(sourceFile), salted(fingerprint));
+  }
+
+  private HashCode salted(final HashCode fingerprint) {
+    return Hashing.sha256()
+        .newHasher()
+        .putString(salt, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putBytes(fingerprint.asBytes())
+        .hash();
+  }
+
+  /** Save the fingerprints taken in this run, keeping those of files that were not processed. */
+  void save(final Path fingerprintsFile) {
+    index.compactTo(fingerprintsFile);
+  }
+}
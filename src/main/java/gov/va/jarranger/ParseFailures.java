@@ -0,0 +1,81 @@
+package gov.va.jarranger;
+
+import com.github.javaparser.JavaParserBuild;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The content of each file that could not be parsed, so that it is not parsed again until it
+ * changes. Content is hashed together with the parser version and profile, since another parser may
+ * succeed. Kept in a {@link DigestIndex}, keyed by absolute path.
+ */
+final class ParseFailures {
+  private final DigestIndex index;
+
+  /** Parser version and profile, hashed into every digest. */
+  private final String salt;
+
+  private final AtomicInteger skipped = new AtomicInteger();
+
+  private ParseFailures(final DigestIndex index, final ParserProfile parserProfile) {
+    this.index = index;
+    this.salt = JavaParserBuild.PROJECT_VERSION + "/" + parserProfile;
+  }
+
+  static ParseFailures empty(final ParserProfile parserProfile) {
+    return new ParseFailures(DigestIndex.empty(), parserProfile);
+  }
+
+  private static long key(final Path sourceFile) {
+    return DigestIndex.key(sourceFile.toAbsolutePath().toString());
+  }
+
+  /**
+   * Open the failures recorded by an earlier run. A missing or unreadable file yields no failures.
+   */
+  static ParseFailures load(final Path failuresFile, final ParserProfile parserProfile) {
+    return new ParseFailures(DigestIndex.open(failuresFile), parserProfile);
+  }
+
+  private HashCode digest(final ByteBuffer content) {
+    return Hashing.sha256()
+        .newHasher()
+        .putString(salt, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putBytes(content)
+        .hash();
+  }
+
+  /** Remember the content of a file that failed to parse. Safe to call from any thread. */
+  void record(final Path sourceFile, final ByteBuffer content) {
+    index.put(key(sourceFile), digest(content));
+  }
+
+  /** Save the failures found in this run, keeping those of files that were not parsed. */
+  void save(final Path failuresFile) {
+    index.compactTo(failuresFile);
+  }
+
+  /**
+   * Whether to skip the file because it failed to parse when it last had the given content. Safe to
+   * call from any thread.
+   */
+  boolean skip(final Path sourceFile, final ByteBuffer content) {
+    final long key = key(sourceFile);
+    // Most files never failed, so they are not hashed.
+    if (index.containsKey(key) && index.contains(key, digest(content))) {
+      skipped.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /** The number of files skipped so far. */
+  int skipped() {
+    return skipped.get();
+  }
+}
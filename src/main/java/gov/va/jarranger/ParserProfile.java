@@ -0,0 +1,13 @@
+package gov.va.jarranger;
+
+/** How source files are parsed. */
+enum ParserProfile {
+  /** JavaParser's stock configuration, with a new parser for every file. */
+  DEFAULT,
+
+  /**
+   * One parser per worker thread, reused for every file that thread handles, instead of a new
+   * parser per file. It parses with the same settings as DEFAULT, so the output is the same.
+   */
+  LEAN
+}
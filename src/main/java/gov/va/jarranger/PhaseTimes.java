@@ -0,0 +1,124 @@
+package gov.va.jarranger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time each file spent in each phase of arrangement, and the bytes allocated per file, recorded
+ * for the benchmark goal. Safe to record into from any thread. Phases that run in a forked worker
+ * JVM are not recorded.
+ */
+final class PhaseTimes {
+  private final Map<Phase, List<Long>> nanos = new EnumMap<>(Phase.class);
+
+  private final AtomicLong files = new AtomicLong();
+
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final AtomicLong allocatedBytes = new AtomicLong();
+
+  PhaseTimes() {
+    for (final Phase phase : Phase.values()) {
+      nanos.put(phase, Collections.synchronizedList(new ArrayList<>()));
+    }
+  }
+
+  /**
+   * The bytes allocated by the current thread so far, or -1 if the JVM does not count them, as with
+   * virtual threads.
+   */
+  static long threadAllocatedBytes() {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    return ((com.sun.management.ThreadMXBean) threads)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /** The bytes allocated per file, on the thread that arranged it. */
+  long allocatedBytesPerFile() {
+    return files.get() == 0 ? 0 : allocatedBytes.get() / files.get();
+  }
+
+  /** The total size of the files done. */
+  long bytes() {
+    return bytes.get();
+  }
+
+  /**
+   * Count a file of the given size as done, which allocated the given bytes, or -1 if unknown, on
+   * its thread.
+   */
+  void fileDone(final long size, final long allocated) {
+    files.incrementAndGet();
+    bytes.addAndGet(size);
+    if (allocated > 0) {
+      allocatedBytes.addAndGet(allocated);
+    }
+  }
+
+  /** The number of files done. */
+  long files() {
+    return files.get();
+  }
+
+  /**
+   * The time within which the given fraction of the files finished the phase, by nearest rank, in
+   * nanoseconds. Zero if no file went through the phase.
+   */
+  long percentile(final Phase phase, final double fraction) {
+    final List<Long> sorted;
+    synchronized (nanos.get(phase)) {
+      sorted = new ArrayList<>(nanos.get(phase));
+    }
+    if (sorted.isEmpty()) {
+      return 0;
+    }
+    Collections.sort(sorted);
+    final int rank = (int) Math.ceil(fraction * sorted.size());
+    return sorted.get(Math.max(0, rank - 1));
+  }
+
+  /** Record the time one file spent in the phase. */
+  void record(final Phase phase, final long phaseNanos) {
+    nanos.get(phase).add(phaseNanos);
+  }
+
+  /** The number of files that went through the phase. */
+  int samples(final Phase phase) {
+    return nanos.get(phase).size();
+  }
+
+  @Override
+  public String toString() {
+    return "phase times of " + files.get() + " files";
+  }
+
+  /** A phase of arranging a file. */
+  enum Phase {
+    /** Reading or mapping the file. */
+    READ,
+
+    /** Parsing it into a syntax tree. */
+    PARSE,
+
+    /** Ordering the members of every type. */
+    ARRANGE,
+
+    /** Printing the tree, if its order changed. */
+    PRINT,
+
+    /** Formatting with google-java-format, if asked to. */
+    FORMAT,
+
+    /** The whole file, from start to finish, on its thread. */
+    FILE
+  }
+}
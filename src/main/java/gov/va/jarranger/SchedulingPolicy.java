@@ -0,0 +1,13 @@
+package gov.va.jarranger;
+
+/** Order in which source files are handed to the worker threads. */
+enum SchedulingPolicy {
+  /** In the order the files are found in the source directories. */
+  DISCOVERY,
+
+  /**
+   * Slowest first, by the processing time recorded in an earlier run or, failing that, by size. The
+   * last file to finish is then a small one, so no thread grinds alone at the end of the run.
+   */
+  LARGEST_FIRST
+}
@@ -23,7 +23,7 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Lists;
+import com.google.common.collect.MultimapBuilder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
@@ -31,14 +31,20 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import lombok.Getter;
 
 /**
  * Compute the arrangement of members for a {@link TypeDeclaration}. The arrangement is shallow; the
  * internals of members that have their own members (e.g. inner classes) are not analyzed. The input
- * is not modified; the new arrangement is stored in the {@link #arrangedNodes} field.
+ * is not modified. An instance keeps its scratch lists between calls, so one instance can arrange
+ * any number of types, one at a time.
  */
 final class ShallowArranger {
+  /** Rank of static methods, the first of the groups that are sorted by name. */
+  private static final int STATIC_METHODS = 20;
+
+  /** Rank of annotation members, the last of the groups that are sorted by name. */
+  private static final int ANNOTATION_MEMBERS = 22;
+
   private final List<AnnotationMemberDeclaration> annotationMembers = new ArrayList<>();
 
   private final List<ConstructorDeclaration> constructors = new ArrayList<>();
@@ -57,121 +63,94 @@ final class ShallowArranger {
   private final List<EnumDeclaration> enums = new ArrayList<>();
 
   /** Output field that contains the new arrangement. */
-  @Getter private final List<BodyDeclaration<?>> arrangedNodes = new ArrayList<>();
-
-  ShallowArranger(final TypeDeclaration<?> typeDec) {
-    super();
-
-    for (final BodyDeclaration<?> member : typeDec.getMembers()) {
-      addBody(member);
-    }
-
-    sortMethods(methods.statics);
-    sortMethods(methods.nonStatics);
-    sortMethods(annotationMembers);
-
-    // Build the arranged list.
-    // Enum constant declarations must be first.
-    arrangedNodes.addAll(enumConstants);
-
-    // Add fields and initializers.
-    if (isInterfaceOrAnnotation(typeDec)) {
-      // Do not sort fields for interfaces or annotations.
-      // Everything is treated as static.
-      arrangedNodes.addAll(fields.unsorted);
-      // Initializers are not valid inside interfaces.
-      // Include defensively.
-      arrangedNodes.addAll(initializers.unsorted);
-    } else {
-      arrangedNodes.addAll(fields.staticFinals.arranged());
-      arrangedNodes.addAll(fields.statics.arranged());
-      arrangedNodes.addAll(initializers.statics);
-      arrangedNodes.addAll(fields.finals.arranged());
-      arrangedNodes.addAll(fields.plains.arranged());
-      arrangedNodes.addAll(initializers.nonStatics);
-    }
-
-    // Add constructors and methods.
-    arrangedNodes.addAll(constructors);
-    arrangedNodes.addAll(methods.arranged());
-    arrangedNodes.addAll(annotationMembers);
-
-    // Add enums, interfaces, and classes.
-    arrangedNodes.addAll(enums);
-    arrangedNodes.addAll(classesInterfacesAnnotations.interfacesAndAnnotations);
-    if (isInterfaceOrAnnotation(typeDec)) {
-      arrangedNodes.addAll(classesInterfacesAnnotations.classes.unsorted);
-    } else {
-      arrangedNodes.addAll(classesInterfacesAnnotations.classes.arranged());
-    }
-  }
+  private final List<BodyDeclaration<?>> arrangedNodes = new ArrayList<>();
 
+  /**
+   * Move each setter to just after its getter, keeping the order of the setters. One pass, which
+   * rebuilds the list only if something moves.
+   */
   private static <T extends NodeWithSimpleName<?>> void groupGettersAndSetters(
       final List<T> nodes) {
-    final Map<String, T> getters = new HashMap<>();
-    final Map<String, T> gettersBoolean = new HashMap<>();
+    final Map<String, Integer> getters = new HashMap<>();
+    final Map<String, Integer> gettersBoolean = new HashMap<>();
     // A getter may have several setters, each with one parameter
-    final ListMultimap<String, T> setters = ArrayListMultimap.create();
+    final ListMultimap<String, Integer> setters = ArrayListMultimap.create();
 
-    for (final T node : nodes) {
+    for (int i = 0; i < nodes.size(); i++) {
+      final T node = nodes.get(i);
       final String name = node.getNameAsString();
       if (isGetter(node)) {
         final String key = name.substring("get".length());
         checkState(!getters.containsKey(key));
-        getters.put(key, node);
+        getters.put(key, i);
       } else if (isGetterBoolean(node)) {
         final String key = name.substring("is".length());
         checkState(!gettersBoolean.containsKey(key));
-        gettersBoolean.put(key, node);
+        gettersBoolean.put(key, i);
       } else if (isSetter(node)) {
-        setters.put(name.substring("set".length()), node);
+        setters.put(name.substring("set".length()), i);
       }
     }
 
-    for (final Map.Entry<String, Collection<T>> settersEntry : setters.asMap().entrySet()) {
+    // Setters by the index of their getter, in their original order.
+    final ListMultimap<Integer, Integer> settersByGetter = ArrayListMultimap.create();
+    final boolean[] moved = new boolean[nodes.size()];
+    for (final Map.Entry<String, Collection<Integer>> settersEntry : setters.asMap().entrySet()) {
       final String key = settersEntry.getKey();
-      final T getter = getters.getOrDefault(key, gettersBoolean.get(key));
+      final Integer getter = getters.getOrDefault(key, gettersBoolean.get(key));
       if (getter == null) {
         continue;
       }
-      // Original setter order will be reversed as they are inserted here.
-      // Use a reversed list to preserve the original order.
-      for (final T setter : Lists.reverse(ImmutableList.copyOf(settersEntry.getValue()))) {
-        final boolean removed = nodes.remove(setter);
-        checkState(removed);
-        final int getterIndex = nodes.indexOf(getter);
-        checkState(getterIndex >= 0);
-        nodes.add(getterIndex + 1, setter);
+      settersByGetter.putAll(getter, settersEntry.getValue());
+      for (final int setter : settersEntry.getValue()) {
+        moved[setter] = true;
       }
     }
+    if (settersByGetter.isEmpty()) {
+      return;
+    }
+
+    final List<T> grouped = new ArrayList<>(nodes.size());
+    for (int i = 0; i < nodes.size(); i++) {
+      if (moved[i]) {
+        continue;
+      }
+      grouped.add(nodes.get(i));
+      for (final int setter : settersByGetter.get(i)) {
+        grouped.add(nodes.get(setter));
+      }
+    }
+    checkState(grouped.size() == nodes.size());
+    nodes.clear();
+    nodes.addAll(grouped);
   }
 
+  /**
+   * Move each overloaded method to just after the previous method of the same name, so that each
+   * name keeps the place of its first method. One pass, which rebuilds the list only if something
+   * moves.
+   */
   private static <T extends NodeWithSimpleName<?>> void groupOverloadedMethods(
       final List<T> nodes) {
-    final ListMultimap<String, T> byName = ArrayListMultimap.create();
+    final ListMultimap<String, T> byName =
+        MultimapBuilder.linkedHashKeys().arrayListValues().build();
+    int runs = 0;
+    String previousName = null;
     for (final T node : nodes) {
-      byName.put(node.getNameAsString(), node);
-    }
-    for (final Map.Entry<String, Collection<T>> entry : byName.asMap().entrySet()) {
-      if (entry.getValue().size() <= 1) {
-        continue;
-      }
-
-      final List<T> list = ImmutableList.copyOf(entry.getValue());
-      for (int i = 1; i < list.size(); i++) {
-        final int prevIndex = nodes.indexOf(list.get(i - 1));
-        final T node = list.get(i);
-        final int index = nodes.indexOf(node);
-        checkState(index > prevIndex);
-        if (index - prevIndex == 1) {
-          continue;
-        }
-
-        final boolean removed = nodes.remove(node);
-        checkState(removed);
-        nodes.add(prevIndex + 1, node);
+      final String name = node.getNameAsString();
+      if (!name.equals(previousName)) {
+        runs++;
+        previousName = name;
       }
+      byName.put(name, node);
+    }
+    if (runs == byName.keySet().size()) {
+      return;
     }
+
+    final List<T> grouped = ImmutableList.copyOf(byName.values());
+    nodes.clear();
+    nodes.addAll(grouped);
   }
 
   private static boolean hasPrefix(final String prefix, final String name) {
@@ -196,6 +175,33 @@ final class ShallowArranger {
         && methodType(node).toString().equalsIgnoreCase("boolean");
   }
 
+  /**
+   * Whether the members are already in the order that arrange() would produce, checked in a single
+   * pass. Only answers yes when certain: a type with setters, which are grouped with their getters,
+   * is left to the full arrangement.
+   */
+  static boolean isInOrder(final TypeDeclaration<?> typeDec) {
+    final boolean interfaceOrAnnotation = isInterfaceOrAnnotation(typeDec);
+    int previousRank = 0;
+    String previousName = null;
+    for (final BodyDeclaration<?> member : typeDec.getMembers()) {
+      final int rank = rank(member, interfaceOrAnnotation);
+      if (rank < previousRank) {
+        return false;
+      }
+      if (rank >= STATIC_METHODS && rank <= ANNOTATION_MEMBERS) {
+        final NodeWithSimpleName<?> named = (NodeWithSimpleName<?>) member;
+        if (isSetter(named)
+            || (rank == previousRank && named.getNameAsString().compareTo(previousName) < 0)) {
+          return false;
+        }
+        previousName = named.getNameAsString();
+      }
+      previousRank = rank;
+    }
+    return true;
+  }
+
   private static boolean isInterfaceOrAnnotation(final TypeDeclaration<?> typeDec) {
     if (typeDec instanceof ClassOrInterfaceDeclaration) {
       return ((ClassOrInterfaceDeclaration) typeDec).isInterface();
@@ -228,7 +234,57 @@ final class ShallowArranger {
     return new NodeList<>();
   }
 
-  private static <T extends NodeWithSimpleName<?>> void sortMethods(final List<T> nodes) {
+  /**
+   * Position of the group of the member in the arrangement, as built by arrange(). Negative for an
+   * unknown kind of member.
+   */
+  private static int rank(final BodyDeclaration<?> member, final boolean interfaceOrAnnotation) {
+    if (member instanceof EnumConstantDeclaration) {
+      return 0;
+    }
+    if (member instanceof FieldDeclaration) {
+      final FieldDeclaration field = (FieldDeclaration) member;
+      if (interfaceOrAnnotation) {
+        return 1;
+      }
+      if (field.isStatic()) {
+        return (field.isFinal() ? 1 : 5) + visibility(field);
+      }
+      return (field.isFinal() ? 10 : 14) + visibility(field);
+    }
+    if (member instanceof InitializerDeclaration) {
+      if (interfaceOrAnnotation) {
+        return 2;
+      }
+      return ((InitializerDeclaration) member).isStatic() ? 9 : 18;
+    }
+    if (member instanceof ConstructorDeclaration) {
+      return 19;
+    }
+    if (member instanceof MethodDeclaration) {
+      return ((MethodDeclaration) member).isStatic() ? STATIC_METHODS : STATIC_METHODS + 1;
+    }
+    if (member instanceof AnnotationMemberDeclaration) {
+      return ANNOTATION_MEMBERS;
+    }
+    if (member instanceof EnumDeclaration) {
+      return 23;
+    }
+    if (member instanceof AnnotationDeclaration) {
+      return 24;
+    }
+    if (member instanceof ClassOrInterfaceDeclaration) {
+      final ClassOrInterfaceDeclaration classOrInterface = (ClassOrInterfaceDeclaration) member;
+      if (classOrInterface.isInterface()) {
+        return 24;
+      }
+      return interfaceOrAnnotation || classOrInterface.isStatic() ? 25 : 26;
+    }
+    return -1;
+  }
+
+  /** Sort the methods by name, then group getters with setters and overloads with each other. */
+  static <T extends NodeWithSimpleName<?>> void sortMethods(final List<T> nodes) {
     final Comparator<T> nameComparator =
         (left, right) -> left.getNameAsString().compareTo(right.getNameAsString());
     nodes.sort(nameComparator);
@@ -236,6 +292,17 @@ final class ShallowArranger {
     groupOverloadedMethods(nodes);
   }
 
+  /** Position of the field among the visibilities: public, protected, package, private. */
+  private static int visibility(final FieldDeclaration field) {
+    if (field.isPublic()) {
+      return 0;
+    }
+    if (field.isProtected()) {
+      return 1;
+    }
+    return field.isPrivate() ? 3 : 2;
+  }
+
   private void addBody(final BodyDeclaration<?> member) {
     if (member instanceof AnnotationMemberDeclaration) {
       annotationMembers.add((AnnotationMemberDeclaration) member);
@@ -260,6 +327,78 @@ final class ShallowArranger {
     }
   }
 
+  /**
+   * Compute the arrangement of the members of the type. Returns the members themselves if they are
+   * already in order, otherwise the arranged list, which is reused by the next call.
+   */
+  List<BodyDeclaration<?>> arrange(final TypeDeclaration<?> typeDec) {
+    if (isInOrder(typeDec)) {
+      return typeDec.getMembers();
+    }
+    return arrangeAll(typeDec);
+  }
+
+  /** Compute the arrangement of the members of the type, even if they are already in order. */
+  List<BodyDeclaration<?>> arrangeAll(final TypeDeclaration<?> typeDec) {
+    clear();
+
+    for (final BodyDeclaration<?> member : typeDec.getMembers()) {
+      addBody(member);
+    }
+
+    sortMethods(methods.statics);
+    sortMethods(methods.nonStatics);
+    sortMethods(annotationMembers);
+
+    // Build the arranged list.
+    // Enum constant declarations must be first.
+    arrangedNodes.addAll(enumConstants);
+
+    // Add fields and initializers.
+    if (isInterfaceOrAnnotation(typeDec)) {
+      // Do not sort fields for interfaces or annotations.
+      // Everything is treated as static.
+      arrangedNodes.addAll(fields.unsorted);
+      // Initializers are not valid inside interfaces.
+      // Include defensively.
+      arrangedNodes.addAll(initializers.unsorted);
+    } else {
+      arrangedNodes.addAll(fields.staticFinals.arranged());
+      arrangedNodes.addAll(fields.statics.arranged());
+      arrangedNodes.addAll(initializers.statics);
+      arrangedNodes.addAll(fields.finals.arranged());
+      arrangedNodes.addAll(fields.plains.arranged());
+      arrangedNodes.addAll(initializers.nonStatics);
+    }
+
+    // Add constructors and methods.
+    arrangedNodes.addAll(constructors);
+    arrangedNodes.addAll(methods.arranged());
+    arrangedNodes.addAll(annotationMembers);
+
+    // Add enums, interfaces, and classes.
+    arrangedNodes.addAll(enums);
+    arrangedNodes.addAll(classesInterfacesAnnotations.interfacesAndAnnotations);
+    if (isInterfaceOrAnnotation(typeDec)) {
+      arrangedNodes.addAll(classesInterfacesAnnotations.classes.unsorted);
+    } else {
+      arrangedNodes.addAll(classesInterfacesAnnotations.classes.arranged());
+    }
+    return arrangedNodes;
+  }
+
+  private void clear() {
+    annotationMembers.clear();
+    constructors.clear();
+    methods.clear();
+    enumConstants.clear();
+    fields.clear();
+    initializers.clear();
+    classesInterfacesAnnotations.clear();
+    enums.clear();
+    arrangedNodes.clear();
+  }
+
   private static final class ByStatic<T extends BodyDeclaration<?>> {
     private final List<T> unsorted = new ArrayList<>();
 
@@ -280,6 +419,12 @@ final class ShallowArranger {
       return ImmutableList.copyOf(Iterables.concat(statics, nonStatics));
     }
 
+    void clear() {
+      unsorted.clear();
+      statics.clear();
+      nonStatics.clear();
+    }
+
     private boolean isStatic(final T member) {
       if (member instanceof NodeWithStaticModifier<?>) {
         return ((NodeWithStaticModifier<?>) member).isStatic();
@@ -308,6 +453,11 @@ final class ShallowArranger {
     void add(final AnnotationDeclaration annotation) {
       interfacesAndAnnotations.add(annotation);
     }
+
+    void clear() {
+      classes.clear();
+      interfacesAndAnnotations.clear();
+    }
   }
 
   private static final class FieldsByStaticFinalVisibility {
@@ -338,6 +488,14 @@ final class ShallowArranger {
         }
       }
     }
+
+    void clear() {
+      unsorted.clear();
+      staticFinals.clear();
+      statics.clear();
+      finals.clear();
+      plains.clear();
+    }
   }
 
   private static final class FieldsByVisibility {
@@ -364,5 +522,12 @@ final class ShallowArranger {
     List<FieldDeclaration> arranged() {
       return ImmutableList.copyOf(Iterables.concat(publics, protecteds, packagePrivates, privates));
     }
+
+    void clear() {
+      publics.clear();
+      protecteds.clear();
+      packagePrivates.clear();
+      privates.clear();
+    }
   }
 }
@@ -0,0 +1,132 @@
+package gov.va.jarranger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import lombok.Builder;
+import lombok.SneakyThrows;
+import lombok.Value;
+
+/**
+ * One slice of a source tree, so that several machines can split the work. Every machine must see
+ * the same files to agree on the split. Files are assigned by a stable hash of their path relative
+ * to the source root, or, when {@link #bySize} is set, greedily by size so that each shard gets
+ * about the same number of bytes.
+ */
+@Value
+@Builder
+final class Shard {
+  /** The single shard that contains every file. */
+  public static final Shard ALL = new Shard(0, 1, false);
+
+  /** Name of the partial result file a shard writes, e.g. core.shard-0-of-4.properties. */
+  public static final Pattern RESULT_FILE_NAME =
+      Pattern.compile("(?<module>.+)\\.shard-(?<index>\\d+)-of-(?<count>\\d+)\\.properties");
+
+  private final int index;
+
+  private final int count;
+
+  private final boolean bySize;
+
+  Shard(final int index, final int count, final boolean bySize) {
+    checkArgument(count >= 1, "Shard count must be at least 1, got %s.", count);
+    checkArgument(
+        index >= 0 && index < count, "Shard index must be in [0, %s), got %s.", count, index);
+    this.index = index;
+    this.count = count;
+    this.bySize = bySize;
+  }
+
+  /** Relative path with '/' separators, so the hash does not depend on the file system. */
+  private static String relativeName(final Path sourceRootDir, final Path sourceFile) {
+    final List<String> names = new ArrayList<>();
+    for (final Path name : sourceRootDir.relativize(sourceFile)) {
+      names.add(name.toString());
+    }
+    return String.join("/", names);
+  }
+
+  @SneakyThrows
+  private static long size(final Path sourceFile) {
+    return Files.size(sourceFile);
+  }
+
+  static long stableHash(final String relativeName) {
+    return Hashing.murmur3_128().hashString(relativeName, StandardCharsets.UTF_8).asLong();
+  }
+
+  boolean isAll() {
+    return count == 1;
+  }
+
+  String resultFileName(final String module) {
+    return module + ".shard-" + index + "-of-" + count + ".properties";
+  }
+
+  /** The files under the source root that belong to this shard, in their original order. */
+  List<Path> select(final Path sourceRootDir, final List<Path> sourceFiles) {
+    if (isAll()) {
+      return sourceFiles;
+    }
+    if (!bySize) {
+      return sourceFiles.stream()
+          .filter(f -> Math.floorMod(stableHash(relativeName(sourceRootDir, f)), count) == index)
+          .collect(Collectors.toList());
+    }
+
+    // Largest first, each to the lightest shard so far. Ties are broken by hash, then name, so
+    // that every machine computes the same assignment.
+    final List<Candidate> candidates = new ArrayList<>(sourceFiles.size());
+    for (int i = 0; i < sourceFiles.size(); i++) {
+      final Path sourceFile = sourceFiles.get(i);
+      final String name = relativeName(sourceRootDir, sourceFile);
+      candidates.add(new Candidate(i, name, stableHash(name), size(sourceFile)));
+    }
+    candidates.sort(
+        Comparator.comparingLong(Candidate::getSize)
+            .reversed()
+            .thenComparingLong(Candidate::getHash)
+            .thenComparing(Candidate::getName));
+    final PriorityQueue<long[]> loads =
+        new PriorityQueue<>(
+            Comparator.<long[]>comparingLong(load -> load[0]).thenComparingLong(load -> load[1]));
+    for (int i = 0; i < count; i++) {
+      loads.add(new long[] {0, i});
+    }
+    final boolean[] selected = new boolean[sourceFiles.size()];
+    for (final Candidate candidate : candidates) {
+      final long[] lightest = loads.poll();
+      selected[candidate.getPosition()] = lightest[1] == index;
+      lightest[0] += candidate.getSize();
+      loads.add(lightest);
+    }
+    final List<Path> result = new ArrayList<>();
+    for (int i = 0; i < sourceFiles.size(); i++) {
+      if (selected[i]) {
+        result.add(sourceFiles.get(i));
+      }
+    }
+    return result;
+  }
+
+  @Value
+  private static final class Candidate {
+    private final int position;
+
+    private final String name;
+
+    private final long hash;
+
+    private final long size;
+  }
+}
@@ -0,0 +1,223 @@
+package gov.va.jarranger;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.SneakyThrows;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Results shared by every checkout on the machine, keyed by the content of the file together with
+ * the plugin version and the settings that change the output. Several Maven processes may use the
+ * cache at once: entries are written to a temporary file and renamed into place, so a reader sees
+ * either the whole entry or none, and eviction is done by whichever process holds the lock file.
+ * Entries are evicted least recently used first, using their modification time, which is updated on
+ * every hit.
+ */
+final class SharedCache {
+  /** The file is unchanged by arrangement, so the entry holds no content. */
+  private static final byte UNCHANGED = 0;
+
+  /** The entry holds the content of the arranged file. */
+  private static final byte CHANGED = 1;
+
+  /** Temporary files older than this were left by a process that died, and are deleted. */
+  private static final Duration ABANDONED = Duration.ofHours(1);
+
+  private final Path directory;
+
+  private final Log log;
+
+  private final long maxBytes;
+
+  /** Plugin version and settings, hashed into every key. */
+  private final String salt;
+
+  SharedCache(final Path directory, final Log log, final long maxBytes, final String salt) {
+    this.directory = directory;
+    this.log = log;
+    this.maxBytes = maxBytes;
+    this.salt = salt;
+  }
+
+  private static boolean isTemporary(final Path file) {
+    return file.toString().endsWith(".tmp");
+  }
+
+  private static FileTime lastModified(final Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static long size(final Path file) {
+    try {
+      return Files.size(file);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /** Lock the cache, or return null if another process or thread holds the lock. */
+  private static FileLock tryLock(final FileChannel lockChannel) throws IOException {
+    try {
+      return lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Delete the least recently used entries until the cache is at most three quarters of its maximum
+   * size, if it has grown beyond the maximum. Skipped if another process is already evicting.
+   */
+  @SneakyThrows
+  void evict() {
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    // Closing the channel releases the lock.
+    try (FileChannel lockChannel =
+        FileChannel.open(
+            directory.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      if (tryLock(lockChannel) == null) {
+        return;
+      }
+      final List<Path> entries;
+      try (Stream<Path> files = Files.walk(directory, 2)) {
+        entries =
+            files
+                .filter(f -> Files.isRegularFile(f) && !f.getParent().equals(directory))
+                .collect(Collectors.toList());
+      }
+      final Instant abandoned = Instant.now().minus(ABANDONED);
+      final Map<Path, FileTime> lastUsed =
+          entries.stream().collect(Collectors.toMap(f -> f, SharedCache::lastModified));
+      long totalBytes = 0;
+      final List<Path> evictable = new ArrayList<>(entries.size());
+      for (final Path entry : entries) {
+        if (isTemporary(entry)) {
+          if (lastUsed.get(entry).toInstant().isBefore(abandoned)) {
+            Files.deleteIfExists(entry);
+          }
+          continue;
+        }
+        totalBytes += size(entry);
+        evictable.add(entry);
+      }
+      if (totalBytes <= maxBytes) {
+        return;
+      }
+      evictable.sort(Comparator.comparing(lastUsed::get));
+      for (final Path entry : evictable) {
+        if (totalBytes <= maxBytes / 4 * 3) {
+          break;
+        }
+        totalBytes -= size(entry);
+        Files.deleteIfExists(entry);
+      }
+    }
+  }
+
+  private Path file(final HashCode key) {
+    final String name = key.toString();
+    return directory.resolve(name.substring(0, 2)).resolve(name);
+  }
+
+  /** The arranged content for the given original, if another run already computed it. */
+  Optional<CharSequence> get(final HashCode key, final SourceText original) {
+    final Path file = file(key);
+    final byte[] entry;
+    try {
+      entry = Files.readAllBytes(file);
+    } catch (IOException e) {
+      // Not shared yet, or evicted by another process while being read.
+      return Optional.empty();
+    }
+    if (entry.length == 0 || (entry[0] != UNCHANGED && entry[0] != CHANGED)) {
+      return Optional.empty();
+    }
+    try {
+      Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+    } catch (IOException e) {
+      // Only makes eviction less accurate.
+    }
+    if (entry[0] == UNCHANGED) {
+      return Optional.of(original);
+    }
+    return Optional.of(new String(entry, 1, entry.length - 1, StandardCharsets.UTF_8));
+  }
+
+  /** The key of a file with the given content. */
+  HashCode key(final ByteBuffer content) {
+    return Hashing.sha256()
+        .newHasher()
+        .putString(salt, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putBytes(content)
+        .hash();
+  }
+
+  /**
+   * Share the arranged content of a file. Sharing is best effort: if the entry cannot be written,
+   * this is warned about and the run goes on without it.
+   */
+  void put(final HashCode key, final SourceText original, final CharSequence arranged) {
+    final Path file = file(key);
+    if (Files.exists(file)) {
+      return;
+    }
+    final byte[] entry;
+    if (original.contentEquals(arranged)) {
+      entry = new byte[] {UNCHANGED};
+    } else {
+      final byte[] content = arranged.toString().getBytes(StandardCharsets.UTF_8);
+      entry = new byte[content.length + 1];
+      entry[0] = CHANGED;
+      System.arraycopy(content, 0, entry, 1, content.length);
+    }
+    final Path tempFile =
+        file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    try {
+      MoreFiles.createParentDirectories(file);
+      Files.write(tempFile, entry);
+      try {
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+      } catch (FileAlreadyExistsException e) {
+        // Another process shared the same entry first.
+        Files.deleteIfExists(tempFile);
+      }
+    } catch (IOException e) {
+      log.warn("Failed to share a result in " + directory + ": " + e);
+      try {
+        Files.deleteIfExists(tempFile);
+      } catch (IOException deleteFailure) {
+        // Deleted by eviction once it is abandoned.
+      }
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package gov.va.jarranger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Optional;
+import lombok.SneakyThrows;
+
+/**
+ * The content of a source file. Large files are memory-mapped. A file that is pure ASCII, as most
+ * source files are, is used in place: its characters are its bytes, so the parser and the change
+ * check read the mapped bytes directly, without a copy into a {@code String} or {@code char[]}.
+ * Other files are decoded from UTF-8 once.
+ *
+ * <p>Windows does not allow a file to be written while it is mapped, so files are never mapped
+ * there.
+ */
+final class SourceText implements CharSequence {
+  /** Files smaller than this cost less to read than to map. */
+  static final int MAP_THRESHOLD = 16 * 1024;
+
+  /** Whether files may be mapped, which is never the case on Windows. */
+  static final boolean CAN_MAP =
+      !System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows");
+
+  /** The bytes of the file, from position zero to the limit. */
+  private final ByteBuffer bytes;
+
+  private final boolean ascii;
+
+  /** The decoded content, or null until needed if the content is ASCII. */
+  private String decoded;
+
+  private SourceText(final ByteBuffer bytes, final String decoded, final boolean ascii) {
+    this.bytes = bytes;
+    this.decoded = decoded;
+    this.ascii = ascii;
+  }
+
+  /**
+   * The text of the given UTF-8 bytes, such as content sent to a worker, from position zero to the
+   * limit.
+   */
+  static SourceText of(final ByteBuffer bytes) {
+    if (ByteScanner.isAscii(bytes)) {
+      return new SourceText(bytes, null, true);
+    }
+    final byte[] array = new byte[bytes.limit()];
+    bytes.get(0, array);
+    return new SourceText(bytes, new String(array, StandardCharsets.UTF_8), false);
+  }
+
+  /** Read a file, mapping it if it is large enough and the file system supports it. */
+  @SneakyThrows
+  static SourceText read(final Path path) {
+    ByteBuffer bytes = null;
+    if (CAN_MAP) {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        final long size = channel.size();
+        checkArgument(size <= Integer.MAX_VALUE, "File %s is too large.", path);
+        if (size >= MAP_THRESHOLD) {
+          bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+      } catch (UnsupportedOperationException e) {
+        // Not a file system that can map, such as an in-memory one.
+      }
+    }
+    if (bytes == null) {
+      bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+    }
+    return of(bytes);
+  }
+
+  /**
+   * The bytes of the file if they are all ASCII, so that each byte is a character, as a new
+   * read-only buffer over them.
+   */
+  Optional<ByteBuffer> asciiBytes() {
+    return ascii ? Optional.of(bytes()) : Optional.empty();
+  }
+
+  /** The bytes of the file, as a new read-only buffer over them. */
+  ByteBuffer bytes() {
+    return bytes.asReadOnlyBuffer();
+  }
+
+  @Override
+  public char charAt(final int index) {
+    if (ascii) {
+      return (char) bytes.get(index);
+    }
+    return decoded.charAt(index);
+  }
+
+  /** Whether the other text has the same characters, comparing them in place. */
+  boolean contentEquals(final CharSequence other) {
+    if (other == this) {
+      return true;
+    }
+    if (!ascii) {
+      return decoded.contentEquals(other);
+    }
+    final int length = bytes.limit();
+    if (other.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (other.charAt(i) != bytes.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int length() {
+    return ascii ? bytes.limit() : decoded.length();
+  }
+
+  /** A reader of the characters that, for ASCII, reads the bytes directly. */
+  Reader reader() {
+    if (!ascii) {
+      return new StringReader(decoded);
+    }
+    return new Reader() {
+      private int position;
+
+      @Override
+      public void close() {}
+
+      @Override
+      public int read(final char[] buffer, final int offset, final int length) throws IOException {
+        final int remaining = bytes.limit() - position;
+        if (remaining <= 0) {
+          return -1;
+        }
+        final int count = Math.min(length, remaining);
+        for (int i = 0; i < count; i++) {
+          buffer[offset + i] = (char) bytes.get(position + i);
+        }
+        position += count;
+        return count;
+      }
+    };
+  }
+
+  @Override
+  public CharSequence subSequence(final int start, final int end) {
+    if (!ascii) {
+      return decoded.substring(start, end);
+    }
+    final byte[] range = new byte[end - start];
+    bytes.get(start, range);
+    return new String(range, StandardCharsets.ISO_8859_1);
+  }
+
+  /** The content as a string, decoded once. */
+  @Override
+  public String toString() {
+    if (decoded == null) {
+      final byte[] array = new byte[bytes.limit()];
+      bytes.get(0, array);
+      decoded = new String(array, StandardCharsets.ISO_8859_1);
+    }
+    return decoded;
+  }
+}
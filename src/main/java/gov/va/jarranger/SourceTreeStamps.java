@@ -0,0 +1,106 @@
+package gov.va.jarranger;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.SneakyThrows;
+
+/**
+ * A stamp of each source root, taken after it was arranged, so that an unchanged root can be
+ * skipped without reading any file. A stamp is built from file metadata only: the number of files,
+ * their total size, the newest modification time, and a digest of the sorted path list.
+ */
+final class SourceTreeStamps {
+  private final Properties recorded;
+
+  private final Map<String, String> taken = new ConcurrentHashMap<>();
+
+  private SourceTreeStamps(final Properties recorded) {
+    this.recorded = recorded;
+  }
+
+  static SourceTreeStamps empty() {
+    return new SourceTreeStamps(new Properties());
+  }
+
+  private static String key(final Path sourceRootDir) {
+    return sourceRootDir.toAbsolutePath().toString();
+  }
+
+  /** Load the stamps recorded by an earlier run. A missing or unreadable file yields no stamps. */
+  @SneakyThrows
+  static SourceTreeStamps load(final Path stampsFile) {
+    if (stampsFile == null || !Files.isRegularFile(stampsFile)) {
+      return empty();
+    }
+    final Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(stampsFile, StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    } catch (IllegalArgumentException e) {
+      return empty();
+    }
+    return new SourceTreeStamps(properties);
+  }
+
+  /**
+   * The stamp of the given files of a source root. Anything else that changes the output, such as
+   * formatting, must be part of the settings.
+   */
+  static String stamp(
+      final Path sourceRootDir,
+      final Map<Path, BasicFileAttributes> sourceFiles,
+      final String settings) {
+    final List<String> names = new ArrayList<>(sourceFiles.size());
+    long totalSize = 0;
+    long newestMillis = 0;
+    for (final Map.Entry<Path, BasicFileAttributes> entry : sourceFiles.entrySet()) {
+      names.add(sourceRootDir.relativize(entry.getKey()).toString());
+      totalSize += entry.getValue().size();
+      newestMillis = Math.max(newestMillis, entry.getValue().lastModifiedTime().toMillis());
+    }
+    names.sort(null);
+    final Hasher pathDigest = Hashing.sha256().newHasher();
+    for (final String name : names) {
+      pathDigest.putString(name, StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+    return String.join(
+        ",",
+        settings,
+        Integer.toString(names.size()),
+        Long.toString(totalSize),
+        Long.toString(newestMillis),
+        pathDigest.hash().toString());
+  }
+
+  /** Whether the source root has the same stamp as when it was last arranged. */
+  boolean isUnchanged(final Path sourceRootDir, final String stamp) {
+    return stamp.equals(recorded.getProperty(key(sourceRootDir)));
+  }
+
+  void record(final Path sourceRootDir, final String stamp) {
+    taken.put(key(sourceRootDir), stamp);
+  }
+
+  /** Save the stamps taken in this run, keeping those of roots that were not arranged. */
+  @SneakyThrows
+  void save(final Path stampsFile) {
+    final Properties properties = new Properties();
+    properties.putAll(recorded);
+    taken.forEach(properties::setProperty);
+    MoreFiles.createParentDirectories(stampsFile);
+    try (Writer writer = Files.newBufferedWriter(stampsFile, StandardCharsets.UTF_8)) {
+      properties.store(writer, "jarranger stamp per source root");
+    }
+  }
+}
@@ -0,0 +1,338 @@
+package gov.va.jarranger;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import lombok.SneakyThrows;
+
+/**
+ * Writes arranged content behind the workers, so that a slow disk does not hold them up. A worker
+ * hands over the content and goes on with the next file. The content is encoded in chunks through a
+ * {@link CharsetEncoder} into a direct buffer, both reused from one write to the next, and written
+ * with an {@link AsynchronousFileChannel} to a temporary file next to the source file, which is
+ * then renamed into place. A reader never sees a partly written file, and a file that is still
+ * memory-mapped by {@link SourceText} keeps its old content until it is unmapped.
+ *
+ * <p>At most a fixed number of writes are pending at once, since each holds its content in memory;
+ * beyond that, a worker waits. Closing waits for every write to land, and then syncs them if the
+ * {@link Durability} asks for it.
+ */
+final class SourceWriter implements AutoCloseable {
+  private static final int CHUNK_BYTES = 64 * 1024;
+
+  private final Durability durability;
+
+  private final Semaphore pending;
+
+  private final ExecutorService executor;
+
+  private final Queue<CompletableFuture<HashCode>> writes = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Encoders and buffers that no write is using. A write may go on in the completion handlers of
+   * several threads, so they are handed from write to write rather than kept per thread.
+   */
+  private final Queue<Encoding> encodings = new ConcurrentLinkedQueue<>();
+
+  /** Files written so far, to sync at the end of the run. */
+  private final Set<Path> written = ConcurrentHashMap.newKeySet();
+
+  private volatile boolean closed;
+
+  /** Write on the given number of threads, with at most the given number of writes pending. */
+  SourceWriter(final Durability durability, final int threads, final int maxPending) {
+    this.durability = durability;
+    this.pending = new Semaphore(maxPending);
+    this.executor =
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder().setNameFormat("jarranger-write-%d").setDaemon(true).build());
+  }
+
+  /** Replace the file with the temporary file, keeping the POSIX permissions of the file. */
+  private static void replace(final Path tempFile, final Path file) throws IOException {
+    final PosixFileAttributeView permissions =
+        Files.getFileAttributeView(file, PosixFileAttributeView.class);
+    if (permissions != null) {
+      Files.getFileAttributeView(tempFile, PosixFileAttributeView.class)
+          .setPermissions(permissions.readAttributes().permissions());
+    }
+    Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /** Sync a rewritten file, which is already closed. Reading is enough, even if it is read only. */
+  private static void sync(final Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  /** Sync a directory, so a rename in it lasts. Not every platform can. */
+  private static void syncDirectory(final Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException | UnsupportedOperationException e) {
+      // Such as on Windows, or a file system in memory.
+    }
+  }
+
+  /**
+   * Wait for every write to land, and sync them at the end of the run if the durability asks for
+   * it. Failed writes are reported by their futures.
+   */
+  @Override
+  @SneakyThrows
+  public void close() {
+    closed = true;
+    try {
+      CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]))
+          .exceptionally(e -> null)
+          .join();
+      if (durability == Durability.END_OF_RUN && !written.isEmpty()) {
+        final List<CompletableFuture<Void>> syncs = new ArrayList<>(written.size());
+        for (final Path file : written) {
+          syncs.add(CompletableFuture.runAsync(() -> syncUnchecked(file), executor));
+        }
+        written.stream()
+            .map(Path::getParent)
+            .distinct()
+            .forEach(
+                directory ->
+                    syncs.add(
+                        CompletableFuture.runAsync(() -> syncDirectory(directory), executor)));
+        CompletableFuture.allOf(syncs.toArray(new CompletableFuture<?>[0])).join();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @SneakyThrows
+  private void syncUnchecked(final Path file) {
+    sync(file);
+  }
+
+  @Override
+  public String toString() {
+    return "writer with durability " + durability;
+  }
+
+  /**
+   * Start replacing the content of the file. The future gives the SHA-256 hash of the bytes written
+   * once they have landed, or the error that stopped them.
+   */
+  @SneakyThrows(InterruptedException.class)
+  CompletableFuture<HashCode> write(final Path file, final CharSequence content) {
+    checkState(!closed, "Writer for %s is closed.", file);
+    pending.acquire();
+    final CompletableFuture<HashCode> future = new CompletableFuture<>();
+    writes.add(future.whenComplete((hash, error) -> pending.release()));
+    executor.execute(new Write(file, content, future)::start);
+    return future;
+  }
+
+  /** A UTF-8 encoder and the direct buffer it encodes into. */
+  private static final class Encoding {
+    private final CharsetEncoder encoder =
+        StandardCharsets.UTF_8
+            .newEncoder()
+            // As String.getBytes does, e.g. for an unpaired surrogate.
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+  }
+
+  /** The write of one file, which goes on in the completion handler of each chunk. */
+  private final class Write implements CompletionHandler<Integer, Void> {
+    private final Path file;
+
+    private final Path tempFile;
+
+    private final CharBuffer input;
+
+    private final CompletableFuture<HashCode> future;
+
+    /** The encoder and buffer of this write, returned once it is done with them. */
+    private final Encoding encoding;
+
+    private final CharsetEncoder encoder;
+
+    private final ByteBuffer chunk;
+
+    private final Hasher hasher = Hashing.sha256().newHasher();
+
+    private AsynchronousFileChannel channel;
+
+    private long position;
+
+    private boolean encoded;
+
+    private boolean flushed;
+
+    private boolean released;
+
+    Write(final Path file, final CharSequence content, final CompletableFuture<HashCode> future) {
+      this.file = file;
+      this.tempFile = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+      this.input = CharBuffer.wrap(content);
+      this.future = future;
+      final Encoding idle = encodings.poll();
+      this.encoding = idle == null ? new Encoding() : idle;
+      this.encoder = encoding.encoder.reset();
+      this.chunk = encoding.chunk;
+    }
+
+    @Override
+    public void completed(final Integer count, final Void attachment) {
+      position += count;
+      if (chunk.hasRemaining()) {
+        channel.write(chunk, position, null, this);
+      } else {
+        next();
+      }
+    }
+
+    /**
+     * Encode the next chunk into the chunk buffer and hash it. Returns false once everything is
+     * encoded.
+     */
+    private boolean encodeNext() {
+      chunk.clear();
+      if (!encoded) {
+        encoded = encoder.encode(input, chunk, true).isUnderflow();
+      }
+      if (encoded && !flushed) {
+        flushed = encoder.flush(chunk).isUnderflow();
+      }
+      chunk.flip();
+      if (flushed && !chunk.hasRemaining()) {
+        return false;
+      }
+      hasher.putBytes(chunk.duplicate());
+      return true;
+    }
+
+    private void fail(final Throwable error) {
+      try {
+        if (channel != null) {
+          channel.close();
+        }
+        Files.deleteIfExists(tempFile);
+      } catch (IOException e) {
+        error.addSuppressed(e);
+      }
+      release();
+      future.completeExceptionally(error);
+    }
+
+    @Override
+    public void failed(final Throwable error, final Void attachment) {
+      fail(error);
+    }
+
+    private void finish() throws IOException {
+      if (durability == Durability.PER_FILE) {
+        channel.force(true);
+      }
+      channel.close();
+      land();
+    }
+
+    /** Rename the complete temporary file into place. */
+    private void land() throws IOException {
+      release();
+      replace(tempFile, file);
+      if (durability == Durability.PER_FILE) {
+        syncDirectory(file.getParent());
+      } else if (durability == Durability.END_OF_RUN) {
+        written.add(file);
+      }
+      future.complete(hasher.hash());
+    }
+
+    /** Write the next chunk, or finish once everything is written. */
+    private void next() {
+      try {
+        if (encodeNext()) {
+          channel.write(chunk, position, null, this);
+        } else {
+          finish();
+        }
+      } catch (IOException | RuntimeException e) {
+        fail(e);
+      }
+    }
+
+    /** Return the encoder and buffer for the next write, once this one is done with them. */
+    private void release() {
+      if (!released) {
+        released = true;
+        encodings.add(encoding);
+      }
+    }
+
+    void start() {
+      try {
+        try {
+          channel =
+              AsynchronousFileChannel.open(
+                  tempFile,
+                  Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                  executor);
+        } catch (UnsupportedOperationException e) {
+          writeBlocking();
+          return;
+        }
+      } catch (IOException | RuntimeException e) {
+        fail(e);
+        return;
+      }
+      next();
+    }
+
+    /** Write on this thread, for a file system without asynchronous channels, such as a zip. */
+    private void writeBlocking() throws IOException {
+      try (FileChannel blocking =
+          FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        while (encodeNext()) {
+          while (chunk.hasRemaining()) {
+            blocking.write(chunk);
+          }
+        }
+        if (durability == Durability.PER_FILE) {
+          blocking.force(true);
+        }
+      }
+      land();
+    }
+  }
+}
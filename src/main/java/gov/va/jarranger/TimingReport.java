@@ -0,0 +1,70 @@
+package gov.va.jarranger;
+
+import java.util.List;
+import java.util.Locale;
+import lombok.Builder;
+import lombok.Value;
+
+/** Where the time of one arrangement run went. */
+@Value
+@Builder
+final class TimingReport {
+  private final SchedulingPolicy schedule;
+
+  private final int threads;
+
+  private final int files;
+
+  /** Elapsed time of the whole run. */
+  private final long wallNanos;
+
+  /** Time spent by the worker threads on files, summed over all threads. */
+  private final long busyNanos;
+
+  private final String slowestFile;
+
+  private final long slowestNanos;
+
+  /** The number of workers at the start and each change made to it, if it was adaptive. */
+  @Builder.Default private final List<String> workerChanges = List.of();
+
+  private static String seconds(final long nanos) {
+    return String.format(Locale.US, "%.2f s", nanos / 1e9);
+  }
+
+  String summary() {
+    final StringBuilder summary =
+        new StringBuilder()
+            .append("Timing: ")
+            .append(files)
+            .append(" files in ")
+            .append(seconds(wallNanos))
+            .append(" on ")
+            .append(threads)
+            .append(threads == 1 ? " thread, " : " threads, ")
+            .append(schedule.name().toLowerCase(Locale.US).replace('_', '-'))
+            .append(" scheduling, ")
+            .append(String.format(Locale.US, "%.0f%%", 100 * utilization()))
+            .append(" busy.");
+    if (slowestFile != null) {
+      summary
+          .append(" Slowest file ")
+          .append(slowestFile)
+          .append(" took ")
+          .append(seconds(slowestNanos))
+          .append('.');
+    }
+    if (!workerChanges.isEmpty()) {
+      summary.append(" Workers: ").append(String.join(", ", workerChanges)).append('.');
+    }
+    return summary.toString();
+  }
+
+  /** Fraction of the available thread time that was spent on files. */
+  double utilization() {
+    if (wallNanos <= 0 || threads <= 0) {
+      return 0;
+    }
+    return Math.min(1, (double) busyNanos / ((double) wallNanos * threads));
+  }
+}
@@ -0,0 +1,336 @@
+package gov.va.jarranger;
+
+import com.google.common.base.Splitter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.SneakyThrows;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Forked JVMs that arrange file content, so that syntax trees and their garbage live on heaps of
+ * their own instead of the heap of the Maven JVM. Each worker runs {@link ArrangementWorker} and
+ * handles one file at a time. Threads take whichever worker is idle, so work is spread across the
+ * workers. Files are read, cached and written by the Maven JVM; only their content is sent. A
+ * worker that is lost, or that sends a response the pool cannot read to the end, is replaced.
+ *
+ * <p>A worker enforces the file timeout itself, but one that hangs outside of a file, such as in a
+ * long garbage collection, would never answer. So a watchdog stops a worker that has not answered a
+ * grace period after the timeout, and the file counts as timed out.
+ */
+final class WorkerPool implements AutoCloseable {
+  /** The compiler internals used by google-java-format, as in .mvn/jvm.config. */
+  private static final List<String> EXPORTS =
+      List.of(
+          "--add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED",
+          "--add-exports=jdk.compiler/com.sun.tools.javac.code=ALL-UNNAMED",
+          "--add-exports=jdk.compiler/com.sun.tools.javac.file=ALL-UNNAMED",
+          "--add-exports=jdk.compiler/com.sun.tools.javac.parser=ALL-UNNAMED",
+          "--add-exports=jdk.compiler/com.sun.tools.javac.tree=ALL-UNNAMED",
+          "--add-exports=jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED");
+
+  /** Time beyond the file timeout that a worker is given to answer before it is stopped. */
+  private static final Duration GRACE = Duration.ofSeconds(2);
+
+  /** The command that starts a worker. */
+  private final List<String> command;
+
+  private final boolean format;
+
+  private final ParserProfile parserProfile;
+
+  private final Duration fileTimeout;
+
+  private final List<Worker> workers;
+
+  private final BlockingQueue<Worker> idle;
+
+  /** Stops workers that do not answer in time, or null if there is no file timeout. */
+  private final ScheduledThreadPoolExecutor watchdog;
+
+  private WorkerPool(
+      final List<String> command,
+      final boolean format,
+      final ParserProfile parserProfile,
+      final Duration fileTimeout,
+      final List<Worker> workers) {
+    this.command = command;
+    this.format = format;
+    this.parserProfile = parserProfile;
+    this.fileTimeout = fileTimeout;
+    this.workers = Collections.synchronizedList(workers);
+    this.idle = new LinkedBlockingQueue<>(workers);
+    if (fileTimeout == null) {
+      this.watchdog = null;
+    } else {
+      this.watchdog =
+          new ScheduledThreadPoolExecutor(
+              1,
+              runnable -> {
+                final Thread thread = new Thread(runnable, "jarranger-worker-watchdog");
+                thread.setDaemon(true);
+                return thread;
+              });
+      // Most files are answered in time, so their stops would otherwise pile up in the queue.
+      watchdog.setRemoveOnCancelPolicy(true);
+    }
+  }
+
+  /**
+   * The class path of this plugin, including Maven's plugin API, which the plugin class loader
+   * inherits from its parent.
+   */
+  @SneakyThrows(URISyntaxException.class)
+  private static String classPath() {
+    final Set<String> entries = new LinkedHashSet<>();
+    final ClassLoader loader = WorkerPool.class.getClassLoader();
+    if (loader instanceof URLClassLoader) {
+      for (final URL url : ((URLClassLoader) loader).getURLs()) {
+        entries.add(Paths.get(url.toURI()).toString());
+      }
+    } else {
+      entries.addAll(
+          Splitter.on(File.pathSeparatorChar).splitToList(System.getProperty("java.class.path")));
+    }
+    entries.add(
+        Paths.get(Log.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+            .toString());
+    return String.join(File.pathSeparator, entries);
+  }
+
+  /**
+   * Start the given number of worker JVMs with the given options, such as heap size and garbage
+   * collector, and send each the settings that change the output.
+   */
+  static WorkerPool start(
+      final int size,
+      final String jvmArgs,
+      final boolean format,
+      final ParserProfile parserProfile,
+      final Duration fileTimeout) {
+    final List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(EXPORTS);
+    if (jvmArgs != null) {
+      command.addAll(Splitter.on(' ').omitEmptyStrings().splitToList(jvmArgs));
+    }
+    command.add("-cp");
+    command.add(classPath());
+    command.add(ArrangementWorker.class.getName());
+    return start(command, size, format, parserProfile, fileTimeout);
+  }
+
+  /** Start the given number of workers with the given command, which speaks the protocol. */
+  @SneakyThrows
+  static WorkerPool start(
+      final List<String> command,
+      final int size,
+      final boolean format,
+      final ParserProfile parserProfile,
+      final Duration fileTimeout) {
+    final List<Worker> workers = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      workers.add(startWorker(command, format, parserProfile, fileTimeout));
+    }
+    return new WorkerPool(command, format, parserProfile, fileTimeout, workers);
+  }
+
+  private static Worker startWorker(
+      final List<String> command,
+      final boolean format,
+      final ParserProfile parserProfile,
+      final Duration fileTimeout)
+      throws IOException {
+    final Process process =
+        new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    final Worker worker = new Worker(process);
+    try {
+      worker.out.writeInt(ArrangementWorker.VERSION);
+      worker.out.writeBoolean(format);
+      worker.out.writeUTF(parserProfile.name());
+      worker.out.writeLong(fileTimeout == null ? 0 : fileTimeout.toNanos());
+      worker.out.flush();
+    } catch (IOException e) {
+      process.destroyForcibly();
+      throw e;
+    }
+    return worker;
+  }
+
+  /**
+   * Arrange content in the next idle worker, like {@link Jarranger#arrangeContent}. Returns empty
+   * if the content cannot be parsed.
+   */
+  @SneakyThrows(InterruptedException.class)
+  Optional<CharSequence> arrange(
+      final Path absolutePath, final SourceText original, final boolean lean) {
+    final ByteBuffer bytes = original.bytes();
+    final byte[] content = new byte[bytes.remaining()];
+    bytes.get(content);
+    final Worker worker = idle.take();
+    // Whether the whole response of the worker was read, so that it can take the next file.
+    boolean inStep = false;
+    final Stop stop = new Stop(worker.process);
+    final ScheduledFuture<?> scheduled =
+        watchdog == null
+            ? null
+            : watchdog.schedule(stop, fileTimeout.plus(GRACE).toNanos(), TimeUnit.NANOSECONDS);
+    try {
+      worker.out.writeInt(content.length);
+      worker.out.writeUTF(absolutePath.toString());
+      worker.out.writeBoolean(lean);
+      worker.out.write(content);
+      worker.out.flush();
+      final byte status = worker.in.readByte();
+      switch (status) {
+        case ArrangementWorker.UNCHANGED:
+          inStep = true;
+          return Optional.of(original);
+        case ArrangementWorker.CHANGED:
+          final byte[] arranged = new byte[worker.in.readInt()];
+          worker.in.readFully(arranged);
+          inStep = true;
+          return Optional.of(new String(arranged, StandardCharsets.UTF_8));
+        case ArrangementWorker.UNPARSABLE:
+          inStep = true;
+          // The worker logged why.
+          return Optional.empty();
+        case ArrangementWorker.TIMED_OUT:
+          inStep = true;
+          throw new Deadline.Exceeded(fileTimeout);
+        case ArrangementWorker.FAILED:
+          final String message = worker.in.readUTF();
+          inStep = true;
+          throw new IllegalStateException(
+              "Worker JVM failed to arrange " + absolutePath + ": " + message);
+        default:
+          throw new IllegalStateException("Unknown status " + status + " from worker JVM.");
+      }
+    } catch (IOException e) {
+      if (stop.stopped()) {
+        throw new Deadline.Exceeded(fileTimeout);
+      }
+      throw new UncheckedIOException("Lost worker JVM while arranging " + absolutePath, e);
+    } finally {
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+      // A worker the watchdog stopped is replaced, even if it answered just before.
+      idle.add(inStep && !stop.stopped() ? worker : replace(worker));
+    }
+  }
+
+  /** End the session of every worker, and wait for them to exit. */
+  @Override
+  public void close() {
+    if (watchdog != null) {
+      watchdog.shutdownNow();
+    }
+    synchronized (workers) {
+      for (final Worker worker : workers) {
+        worker.close();
+      }
+    }
+  }
+
+  /**
+   * Stop a worker that was lost or whose stream is out of step, and start another in its place. If
+   * none can be started, the stopped worker is kept, so the next file sent to it fails and tries
+   * again.
+   */
+  private Worker replace(final Worker worker) {
+    worker.process.destroyForcibly();
+    try {
+      final Worker replacement = startWorker(command, format, parserProfile, fileTimeout);
+      synchronized (workers) {
+        workers.set(workers.indexOf(worker), replacement);
+      }
+      return replacement;
+    } catch (IOException e) {
+      return worker;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return workers.size() + " worker JVMs";
+  }
+
+  /** Stops a worker that has not answered in time, unless its answer was read first. */
+  private static final class Stop implements Runnable {
+    private final Process process;
+
+    /** Whether the pool is done reading the answer, so the worker is no longer stopped. */
+    private boolean done;
+
+    private boolean stopped;
+
+    Stop(final Process process) {
+      this.process = process;
+    }
+
+    @Override
+    public synchronized void run() {
+      if (!done) {
+        stopped = true;
+        process.destroyForcibly();
+      }
+    }
+
+    /** Whether the worker was stopped. If not, it no longer will be. */
+    synchronized boolean stopped() {
+      done = true;
+      return stopped;
+    }
+  }
+
+  private static final class Worker {
+    private final Process process;
+
+    private final DataOutputStream out;
+
+    private final DataInputStream in;
+
+    Worker(final Process process) {
+      this.process = process;
+      this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    @SneakyThrows(InterruptedException.class)
+    void close() {
+      try {
+        out.writeInt(-1);
+        out.close();
+      } catch (IOException e) {
+        // The worker already exited.
+      }
+      if (!process.waitFor(10, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+      }
+    }
+  }
+}
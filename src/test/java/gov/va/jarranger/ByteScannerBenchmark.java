@@ -0,0 +1,92 @@
+package gov.va.jarranger;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.function.IntSupplier;
+import lombok.SneakyThrows;
+
+/**
+ * Compares the word and scalar versions of {@link ByteScanner}, and the member fingerprint of a
+ * file read as bytes with that of the same file as a string, on a generated source file of several
+ * megabytes. Not run by the build; run the main method from the test class path.
+ */
+final class ByteScannerBenchmark {
+  private static final int ITERATIONS = 20;
+
+  private ByteScannerBenchmark() {}
+
+  /** Count the matches from the start to the end of the bytes. */
+  private static int count(final ByteBuffer bytes, final boolean scalar) {
+    final ByteScanner scanner = ByteScanner.anyOf("{}\"'/");
+    int count = 0;
+    int pos = 0;
+    while (pos < bytes.limit()) {
+      pos =
+          scalar
+              ? scanner.findScalar(bytes, pos, bytes.limit())
+              : scanner.find(bytes, pos, bytes.limit());
+      if (pos < bytes.limit()) {
+        count++;
+        pos++;
+      }
+    }
+    return count;
+  }
+
+  /** A class of many methods whose bodies hold strings, comments and nested blocks. */
+  private static String generate(final int bytes) {
+    final StringBuilder source = new StringBuilder("class Generated {\n");
+    for (int i = 0; source.length() < bytes; i++) {
+      source
+          .append("  /** Method ")
+          .append(i)
+          .append(". */\n  int method")
+          .append(i)
+          .append("(int value) {\n    // Scale the value.\n")
+          .append("    if (value > ")
+          .append(i)
+          .append(") {\n      return value * ")
+          .append(i)
+          .append(";\n    }\n    String s = \"{\" + 'c';\n    return value + s.length();\n  }\n");
+    }
+    return source.append("}\n").toString();
+  }
+
+  @SneakyThrows
+  public static void main(final String[] args) {
+    final Path file = Files.createTempFile("generated", ".java");
+    try {
+      Files.writeString(file, generate(8 << 20));
+      final SourceText text = SourceText.read(file);
+      final String string = text.toString();
+      final ByteBuffer bytes = text.bytes();
+      measure("find, words", bytes.limit(), () -> count(bytes, false));
+      measure("find, scalar", bytes.limit(), () -> count(bytes, true));
+      measure(
+          "fingerprint, bytes", bytes.limit(), () -> MemberFingerprints.fingerprint(text).asInt());
+      measure(
+          "fingerprint, string",
+          bytes.limit(),
+          () -> MemberFingerprints.fingerprint(string).asInt());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /** Run the work for warm-up, then report the throughput of the best of the measured runs. */
+  private static void measure(final String name, final int bytes, final IntSupplier work) {
+    long bestNanos = Long.MAX_VALUE;
+    int result = 0;
+    for (int i = 0; i < 2 * ITERATIONS; i++) {
+      final long start = System.nanoTime();
+      result += work.getAsInt();
+      if (i >= ITERATIONS) {
+        bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+      }
+    }
+    System.out.printf(
+        Locale.US, "%-20s %8.1f MB/s (%d)%n", name, bytes / (bestNanos / 1e9) / (1 << 20), result);
+  }
+}
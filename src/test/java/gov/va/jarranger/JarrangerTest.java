@@ -1,146 +1,1007 @@
 package gov.va.jarranger;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import com.github.javaparser.StaticJavaParser;
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.FieldDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
 import com.github.javaparser.utils.CodeGenerationUtils;
-import com.github.javaparser.utils.SourceRoot;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.googlejavaformat.java.Formatter;
 import gov.va.jarranger.Jarranger.ArrangementResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import lombok.Getter;
 import lombok.SneakyThrows;
 import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  * Many of these tests use pairs of files in src/test/resources: a *.java file and a *.expected.java
- * file. The *.java file is arranged and compared to the *.expected.java file, which has been
- * arranged using IntelliJ IDEA.
+ * file. The *.java file is copied to an in-memory file system, arranged there, and compared to the
+ * *.expected.java file, which has been arranged using IntelliJ IDEA.
  */
 public final class JarrangerTest {
-  private Path testResourcesPath;
+  @TempDir Path tempDir;
 
-  private String targetFileName;
+  private FileSystem fileSystem;
 
   @SneakyThrows
-  private void _backup() {
-    assertThat(testResourcesPath).isNotNull();
-    assertThat(targetFileName).isNotNull();
-    Files.copy(
-        testResourcesPath.resolve(targetFileName + ".java"),
-        testResourcesPath.resolve(targetFileName + ".bak"),
-        StandardCopyOption.REPLACE_EXISTING);
-    assertThat(testResourcesPath.resolve(targetFileName + ".bak").toFile().exists()).isTrue();
+  private static Path _copyTree(final Path sourceDir, final Path targetDir) {
+    Files.createDirectories(targetDir);
+    try (Stream<Path> files = Files.list(sourceDir)) {
+      for (final Path file : (Iterable<Path>) files::iterator) {
+        Files.copy(file, targetDir.resolve(file.getFileName().toString()));
+      }
+    }
+    return targetDir;
+  }
+
+  /** A memory pool of the given type, with the given usage after the last collection. */
+  private static MemoryPoolMXBean _memoryPool(
+      final MemoryType type, final boolean usageThresholdSupported, final MemoryUsage collection) {
+    return (MemoryPoolMXBean)
+        Proxy.newProxyInstance(
+            MemoryPoolMXBean.class.getClassLoader(),
+            new Class<?>[] {MemoryPoolMXBean.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getType":
+                  return type;
+                case "isUsageThresholdSupported":
+                  return usageThresholdSupported;
+                case "getCollectionUsage":
+                  return collection;
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+
+  @SneakyThrows
+  private static CompilationUnit _parse(final Path path) {
+    return StaticJavaParser.parse(path);
+  }
+
+  /** Write a request of the worker protocol, as a worker pool does. */
+  @SneakyThrows
+  private static void _request(
+      final DataOutputStream out, final String path, final String content) {
+    final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.writeUTF(path);
+    out.writeBoolean(false);
+    out.write(bytes);
+  }
+
+  private static Path _resources(final String dirName) {
+    return CodeGenerationUtils.mavenModuleRoot(JarrangerTest.class)
+        .resolve("src/test/resources")
+        .resolve(dirName);
+  }
+
+  /** The responses of a worker to a session with the given timeout and requests. */
+  @SneakyThrows
+  private static DataInputStream _serve(final long timeoutNanos, final String... pathsAndContents) {
+    final ByteArrayOutputStream session = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(session);
+    out.writeInt(ArrangementWorker.VERSION);
+    out.writeBoolean(false);
+    out.writeUTF(ParserProfile.LEAN.name());
+    out.writeLong(timeoutNanos);
+    for (int i = 0; i < pathsAndContents.length; i += 2) {
+      _request(out, pathsAndContents[i], pathsAndContents[i + 1]);
+    }
+    out.writeInt(-1);
+    final ByteArrayOutputStream responses = new ByteArrayOutputStream();
+    ArrangementWorker.serve(new ByteArrayInputStream(session.toByteArray()), responses);
+    return new DataInputStream(new ByteArrayInputStream(responses.toByteArray()));
   }
 
   @AfterEach
+  @SneakyThrows
   public void _cleanUp() {
-    assertThat(testResourcesPath.resolve(targetFileName + ".bak").toFile().exists()).isTrue();
-    final boolean deleted = testResourcesPath.resolve(targetFileName + ".java").toFile().delete();
-    assertThat(deleted).isTrue();
-    final boolean renamed =
-        testResourcesPath
-            .resolve(targetFileName + ".bak")
-            .toFile()
-            .renameTo(testResourcesPath.resolve(targetFileName + ".java").toFile());
-    assertThat(renamed).isTrue();
-    testResourcesPath = null;
-    targetFileName = null;
-  }
-
-  private void _parseAndCompare() {
-    _backup();
+    if (fileSystem != null) {
+      fileSystem.close();
+      fileSystem = null;
+    }
+  }
+
+  private Path _inMemory(final String dirName) {
+    fileSystem = Jimfs.newFileSystem(Configuration.unix());
+    return _copyTree(_resources(dirName), fileSystem.getPath("/src", dirName));
+  }
+
+  private MavenProject _module(final String artifactId, final String packaging) {
+    final MavenProject project = new MavenProject();
+    project.setGroupId("gov.va.test");
+    project.setArtifactId(artifactId);
+    project.setVersion("1");
+    project.setPackaging(packaging);
+    project.getBuild().setSourceDirectory(tempDir.resolve(artifactId + "/main").toString());
+    project.getBuild().setTestSourceDirectory(tempDir.resolve(artifactId + "/test").toString());
+    return project;
+  }
+
+  private void _parseAndCompare(final String dirName, final String targetFileName) {
+    final Path sourceRoot = _inMemory(dirName);
     final CompilationUnit expectedCompUnit =
-        new SourceRoot(testResourcesPath).parse("", targetFileName + ".java.expected");
-    JarrangerMojo.builder()
-        .log(new SystemStreamLog())
-        .sourceDirectory(testResourcesPath.toFile())
-        .build()
-        .execute();
-    final CompilationUnit arrangedCompUnit =
-        new SourceRoot(testResourcesPath).parse("", targetFileName + ".java");
+        _parse(sourceRoot.resolve(targetFileName + ".java.expected"));
+    final ArrangementResult result =
+        Jarranger.builder().log(new SystemStreamLog()).build().arrange(sourceRoot);
+    assertThat(result.getArranged()).isEqualTo(1);
+    final CompilationUnit arrangedCompUnit = _parse(sourceRoot.resolve(targetFileName + ".java"));
     assertThat(arrangedCompUnit).isEqualTo(expectedCompUnit);
   }
 
+  @Test
+  @SneakyThrows
+  public void adaptiveConcurrency() {
+    // Any heap is fuller than this ceiling, so the limit is halved down to a single worker.
+    try (AdaptiveConcurrency concurrency =
+        new AdaptiveConcurrency(8, Double.MIN_VALUE, Duration.ofMillis(5))) {
+      for (int i = 0; i < 200 && concurrency.limit() > 1; i++) {
+        concurrency.acquire();
+        Thread.sleep(1);
+        concurrency.release(1_000);
+      }
+      assertThat(concurrency.limit()).isEqualTo(1);
+      assertThat(concurrency.changes()).startsWith("4 at the start").hasSizeGreaterThan(1);
+      assertThat(concurrency.changes().get(1)).startsWith("2 at ").contains("(heap ");
+    }
+
+    // No heap is fuller than this ceiling, so the limit follows throughput.
+    try (AdaptiveConcurrency concurrency = new AdaptiveConcurrency(8, 1, Duration.ofMillis(5))) {
+      for (int i = 0; i < 200 && concurrency.changes().size() < 3; i++) {
+        concurrency.acquire();
+        Thread.sleep(1);
+        concurrency.release(1_000);
+      }
+      assertThat(concurrency.changes().get(1)).endsWith(" kB/s)");
+    }
+
+    // Only the latest changes are kept, after the number of the earlier ones.
+    try (AdaptiveConcurrency concurrency = new AdaptiveConcurrency(2, 1, Duration.ofDays(1))) {
+      for (int i = 0; i < AdaptiveConcurrency.KEPT_CHANGES + 3; i++) {
+        concurrency.recordChange("change " + i);
+      }
+      assertThat(concurrency.changes())
+          .hasSize(AdaptiveConcurrency.KEPT_CHANGES + 2)
+          .startsWith("1 at the start", "3 earlier changes", "change 3")
+          .endsWith("change " + (AdaptiveConcurrency.KEPT_CHANGES + 2));
+    }
+    assertThatIllegalArgumentException()
+        .isThrownBy(() -> new AdaptiveConcurrency(0, 0.8, Duration.ofMillis(5)));
+    assertThatIllegalArgumentException()
+        .isThrownBy(() -> new AdaptiveConcurrency(8, 0, Duration.ofMillis(5)));
+
+    final RecordingLog log = new RecordingLog();
+    Jarranger.builder().log(log).adaptive(true).build().arrange(_inMemory("general"));
+    assertThat(log.getInfos()).anyMatch(info -> info.contains(" Workers: "));
+  }
+
+  @Test
+  public void adaptiveHeapOccupancy() {
+    final MemoryUsage heap = new MemoryUsage(0, 50, 100, 200);
+    final MemoryPoolMXBean old =
+        _memoryPool(MemoryType.HEAP, true, new MemoryUsage(0, 30, 100, 100));
+    final MemoryPoolMXBean survivor =
+        _memoryPool(MemoryType.HEAP, false, new MemoryUsage(0, 10, 10, 10));
+    final MemoryPoolMXBean metaspace =
+        _memoryPool(MemoryType.NON_HEAP, true, new MemoryUsage(0, 90, 100, 100));
+    // A full survivor space does not mean a full heap.
+    assertThat(AdaptiveConcurrency.heapOccupancy(List.of(survivor, old, metaspace), heap))
+        .isEqualTo(0.3);
+    // Until there was a collection, the whole heap is used.
+    assertThat(AdaptiveConcurrency.heapOccupancy(List.of(survivor), heap)).isEqualTo(0.25);
+    assertThat(AdaptiveConcurrency.heapOccupancy(List.of(), new MemoryUsage(0, 50, 100, -1)))
+        .isEqualTo(0.5);
+    assertThat(AdaptiveConcurrency.heapOccupancy()).isBetween(0.0, 1.0);
+  }
+
   @Test
   public void arrange() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass()).resolve("src/test/resources/general");
-    targetFileName = "ArrangePlz";
-    _parseAndCompare();
+    _parseAndCompare("general", "ArrangePlz");
+  }
+
+  @Test
+  @SneakyThrows
+  public void arrangeAggregate() {
+    _copyTree(_resources("general"), tempDir.resolve("a/main"));
+    _copyTree(_resources("nochange"), tempDir.resolve("a/test"));
+    _copyTree(_resources("innerclass"), tempDir.resolve("b/test"));
+    _copyTree(_resources("overloaded"), tempDir.resolve("parent/main"));
+    final Map<String, Object> pluginContext = new HashMap<>();
+    final JarrangerAggregateMojo aggregate =
+        JarrangerAggregateMojo.builder()
+            .log(new SystemStreamLog())
+            .pluginContext(pluginContext)
+            .reactorProjects(
+                List.of(_module("parent", "pom"), _module("a", "jar"), _module("b", "jar")))
+            .build();
+    aggregate.setOutputDirectory(tempDir.resolve("out").toFile());
+    final Map<String, ArrangementResult> results = aggregate.arrange();
+    assertThat(results).containsOnlyKeys("gov.va.test:a:jar:1", "gov.va.test:b:jar:1");
+    assertThat(results.get("gov.va.test:a:jar:1"))
+        .usingRecursiveComparison()
+        .ignoringFields("changedFiles")
+        .isEqualTo(ArrangementResult.builder().total(2).arranged(1).build());
+    assertThat(results.get("gov.va.test:b:jar:1"))
+        .usingRecursiveComparison()
+        .ignoringFields("changedFiles")
+        .isEqualTo(ArrangementResult.builder().total(1).arranged(1).build());
+    assertThat(_parse(tempDir.resolve("a/main/ArrangePlz.java")))
+        .isEqualTo(_parse(tempDir.resolve("a/main/ArrangePlz.java.expected")));
+
+    // The files rewritten in every module are published.
+    final Map<String, String> changedFiles = new HashMap<>();
+    for (final Path arranged :
+        List.of(
+            tempDir.resolve("a/main/ArrangePlz.java"), tempDir.resolve("b/test/InnerClass.java"))) {
+      changedFiles.put(
+          arranged.toAbsolutePath().toString(),
+          Hashing.sha256().hashBytes(Files.readAllBytes(arranged)).toString());
+    }
+    assertThat(pluginContext.get(JarrangerMojo.CHANGED_FILES)).isEqualTo(changedFiles);
+    assertThat(
+            Files.readAllLines(
+                tempDir.resolve("out").resolve(JarrangerMojo.CHANGED_FILES_MANIFEST)))
+        .hasSize(2);
+  }
+
+  @Test
+  public void arrangeAggregateSkip() {
+    final JarrangerAggregateMojo aggregate =
+        JarrangerAggregateMojo.builder().log(new SystemStreamLog()).build();
+    aggregate.setSkip(true);
+    aggregate.execute();
+    assertThat(aggregate.arrange()).isEmpty();
+  }
+
+  @Test
+  @SneakyThrows
+  public void arrangeRootErrors() {
+    final Jarranger arranger = Jarranger.builder().log(new SystemStreamLog()).build();
+    final Path missing = tempDir.resolve("missing");
+    assertThatIllegalArgumentException()
+        .isThrownBy(() -> arranger.arrange(missing))
+        .withMessage("File %s does not exist.", missing);
+    final Path file = Files.writeString(tempDir.resolve("File.java"), "class File {}\n");
+    assertThatIllegalArgumentException()
+        .isThrownBy(() -> arranger.arrange(file))
+        .withMessage("File %s is not a directory.", file);
+
+    // Hidden directories are skipped, such as those of version control.
+    final Path sourceDir = _copyTree(_resources("general"), tempDir.resolve("src"));
+    _copyTree(_resources("general"), sourceDir.resolve(".git"));
+    final ArrangementResult result = arranger.arrange(sourceDir);
+    assertThat(result.getTotal()).isEqualTo(1);
+    assertThat(Files.readString(sourceDir.resolve(".git/ArrangePlz.java")))
+        .isEqualTo(Files.readString(_resources("general").resolve("ArrangePlz.java")));
+
+    // On a zip file system too.
+    final URI jarUri = URI.create("jar:" + tempDir.resolve("sources.jar").toUri());
+    try (FileSystem zip = FileSystems.newFileSystem(jarUri, Map.of("create", "true"))) {
+      assertThatIllegalArgumentException().isThrownBy(() -> arranger.arrange(zip.getPath("/src")));
+      final Path zipFile = Files.writeString(zip.getPath("/File.java"), "class File {}\n");
+      assertThatIllegalArgumentException().isThrownBy(() -> arranger.arrange(zipFile));
+      assertThat(arranger.arrange(zip.getPath("/")).getTotal()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void arrangeZipFileSystem() {
+    final Path jar = tempDir.resolve("arrange-plz-sources.jar");
+    final URI jarUri = URI.create("jar:" + jar.toUri());
+    try (FileSystem zip = FileSystems.newFileSystem(jarUri, Map.of("create", "true"))) {
+      _copyTree(_resources("general"), zip.getPath("/"));
+    }
+    try (FileSystem zip = FileSystems.newFileSystem(jarUri, Map.of())) {
+      final ArrangementResult result =
+          Jarranger.builder().log(new SystemStreamLog()).build().arrange(zip.getPath("/"));
+      assertThat(result.getTotal()).isEqualTo(1);
+      assertThat(result.getArranged()).isEqualTo(1);
+    }
+    try (FileSystem zip = FileSystems.newFileSystem(jarUri, Map.of())) {
+      assertThat(_parse(zip.getPath("/ArrangePlz.java")))
+          .isEqualTo(_parse(zip.getPath("/ArrangePlz.java.expected")));
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void arrangementWorker() {
+    final String unarranged =
+        Files.readString(_resources("general").resolve("ArrangePlz.java"), StandardCharsets.UTF_8);
+    final DataInputStream responses =
+        _serve(
+            0,
+            "/src/ArrangePlz.java",
+            unarranged,
+            "/src/Arranged.java",
+            "class Arranged {}\n",
+            "/src/Malformed.java",
+            "class {",
+            "/src/\0.java",
+            "class Invalid {}\n");
+    assertThat(responses.readByte()).isEqualTo(ArrangementWorker.CHANGED);
+    final byte[] arranged = new byte[responses.readInt()];
+    responses.readFully(arranged);
+    assertThat(StaticJavaParser.parse(new String(arranged, StandardCharsets.UTF_8)))
+        .isEqualTo(_parse(_resources("general").resolve("ArrangePlz.java.expected")));
+    assertThat(responses.readByte()).isEqualTo(ArrangementWorker.UNCHANGED);
+    assertThat(responses.readByte()).isEqualTo(ArrangementWorker.UNPARSABLE);
+    assertThat(responses.readByte()).isEqualTo(ArrangementWorker.FAILED);
+    assertThat(responses.readUTF()).contains("InvalidPathException");
+    assertThat(responses.read()).isEqualTo(-1);
+
+    final DataInputStream timedOut = _serve(1, "/src/ArrangePlz.java", unarranged);
+    assertThat(timedOut.readByte()).isEqualTo(ArrangementWorker.TIMED_OUT);
+
+    // A message longer than a UTF string can hold is cut short.
+    final String message =
+        ArrangementWorker.message(new IllegalStateException("\u00e9".repeat(100_000)));
+    assertThat(message).hasSizeLessThan(100_000).endsWith("...");
+    new DataOutputStream(new ByteArrayOutputStream()).writeUTF(message);
+  }
+
+  @Test
+  @SneakyThrows
+  public void benchmark() {
+    final Path sourceDir = _copyTree(_resources("general"), tempDir.resolve("main"));
+    final Path source = sourceDir.resolve("ArrangePlz.java");
+    final String before = Files.readString(source);
+    final Path benchmarkFile = tempDir.resolve("out/benchmark.properties");
+    final JarrangerBenchmarkMojo mojo =
+        JarrangerBenchmarkMojo.builder()
+            .log(new SystemStreamLog())
+            .sourceDirectory(sourceDir.toFile())
+            .benchmarkFile(benchmarkFile.toFile())
+            .warmupIterations(1)
+            .iterations(2)
+            .threads(1)
+            .build();
+    final Properties results = mojo.benchmark();
+    assertThat(Files.readString(source)).isEqualTo(before);
+    try (Stream<Path> files = Files.list(sourceDir)) {
+      assertThat(files).hasSize(2);
+    }
+    assertThat(results.getProperty("files")).isEqualTo("1");
+    assertThat(results.getProperty("bytes")).isEqualTo(Long.toString(Files.size(source)));
+    assertThat(Double.parseDouble(results.getProperty("filesPerSecond"))).isPositive();
+    assertThat(Long.parseLong(results.getProperty("allocatedBytesPerFile"))).isPositive();
+    for (final String phase : List.of("read", "parse", "arrange", "print", "file")) {
+      assertThat(results).containsKeys(phase + ".p50Millis", phase + ".maxMillis");
+    }
+    assertThat(results).doesNotContainKey("format.p50Millis");
+    final Properties written = new Properties();
+    try (Reader reader = Files.newBufferedReader(benchmarkFile)) {
+      written.load(reader);
+    }
+    assertThat(written).isEqualTo(results);
+    // Formatting is a shared setting, so the goal measures it too.
+    mojo.setFormat(true);
+    mojo.execute();
+    assertThat(Files.readString(source)).isEqualTo(before);
+    final Properties formatted = new Properties();
+    try (Reader reader = Files.newBufferedReader(benchmarkFile)) {
+      formatted.load(reader);
+    }
+    assertThat(formatted).containsEntry("format", "true").containsKey("format.p50Millis");
+  }
+
+  @Test
+  @SneakyThrows
+  public void byteScanner() {
+    final Random random = new Random(42);
+    final byte[] alphabet = "{}\"'/*\n ab\u00e9".getBytes(StandardCharsets.UTF_8);
+    final List<ByteScanner> scanners =
+        List.of(ByteScanner.anyOf("{}\"'/"), ByteScanner.anyOf("\n"), ByteScanner.anyOf("*"));
+    for (int run = 0; run < 10_000; run++) {
+      final byte[] content = new byte[random.nextInt(64)];
+      for (int i = 0; i < content.length; i++) {
+        // Mostly letters, so that words without a match are common.
+        content[i] = alphabet[random.nextInt(4) == 0 ? random.nextInt(alphabet.length) : 8];
+      }
+      final ByteBuffer bytes =
+          ByteBuffer.wrap(content)
+              .order(random.nextBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+      assertThat(ByteScanner.isAscii(bytes)).isEqualTo(ByteScanner.isAsciiScalar(bytes));
+      final int start = content.length == 0 ? 0 : random.nextInt(content.length);
+      for (final ByteScanner scanner : scanners) {
+        assertThat(scanner.find(bytes, start, content.length))
+            .as("%s in %s from %s", scanner, Arrays.toString(content), start)
+            .isEqualTo(scanner.findScalar(bytes, start, content.length));
+      }
+    }
+
+    final Path file = tempDir.resolve("Scanned.java");
+    Files.writeString(
+        file,
+        "/** Doc { } */\n"
+            + "class Scanned {\n"
+            + "  void a() { String s = \"}\"; char c = '{'; /* } */ // }\n if (x) { b(); } }\n"
+            + "  int b = 1 / 2; // *\n"
+            + "  /***/ void c() { String t = \"\"\"\n  }\n  \"\"\"; }\n"
+            + "}\n");
+    for (final Path source : List.of(file, _resources("general").resolve("ArrangePlz.java"))) {
+      assertThat(MemberFingerprints.fingerprint(SourceText.read(source)))
+          .isEqualTo(MemberFingerprints.fingerprint(Files.readString(source)));
+    }
+
+    assertThat(ByteScanner.anyOf("{}")).hasToString("any of {}");
+    assertThatIllegalArgumentException()
+        .isThrownBy(() -> ByteScanner.anyOf(""))
+        .withMessage("Expected a character to scan for.");
+    assertThatIllegalArgumentException()
+        .isThrownBy(() -> ByteScanner.anyOf("\u00e9"))
+        .withMessage("Expected ASCII characters, got \u00e9.");
+  }
+
+  @Test
+  @SneakyThrows
+  public void changedFiles() {
+    final Path sourceDir = _copyTree(_resources("general"), tempDir.resolve("main"));
+    _copyTree(_resources("nochange"), sourceDir);
+    final Map<String, Object> pluginContext = new HashMap<>();
+    final JarrangerMojo mojo =
+        JarrangerMojo.builder()
+            .log(new SystemStreamLog())
+            .pluginContext(pluginContext)
+            .sourceDirectory(sourceDir.toFile())
+            .build();
+    mojo.setOutputDirectory(tempDir.resolve("out").toFile());
+    mojo.execute();
+    final Path arranged = sourceDir.resolve("ArrangePlz.java").toAbsolutePath();
+    final String hash = Hashing.sha256().hashBytes(Files.readAllBytes(arranged)).toString();
+    assertThat(pluginContext.get(JarrangerMojo.CHANGED_FILES))
+        .isEqualTo(Map.of(arranged.toString(), hash));
+    assertThat(tempDir.resolve("out").resolve(JarrangerMojo.CHANGED_FILES_MANIFEST))
+        .hasContent(hash + "  " + arranged);
+  }
+
+  @Test
+  @SneakyThrows
+  public void deeplyNestedTypes() {
+    final int depth = 200;
+    final StringBuilder source = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      source.append("class T").append(i).append(" { void b() {} int a;\n");
+    }
+    for (int i = 0; i < depth; i++) {
+      source.append("}\n");
+    }
+    final Path sourceRoot = _inMemory("nochange");
+    final Path file = sourceRoot.resolve("Deep.java");
+    Files.writeString(file, source);
+    final ArrangementResult result =
+        Jarranger.builder().log(new SystemStreamLog()).build().arrange(sourceRoot);
+    assertThat(result.getArranged()).isEqualTo(1);
+    assertThat(Files.readString(file)).doesNotContain("{ void b() {} int a;");
+  }
+
+  @Test
+  @SneakyThrows
+  public void digestIndex() {
+    final HashCode a = Hashing.sha256().hashString("a", StandardCharsets.UTF_8);
+    final HashCode b = Hashing.sha256().hashString("b", StandardCharsets.UTF_8);
+    for (final Path indexFile :
+        List.of(tempDir.resolve("index.idx"), _inMemory("nochange").resolve("index.idx"))) {
+      final DigestIndex first = DigestIndex.open(indexFile);
+      for (long key = -500; key < 500; key += 2) {
+        first.put(key, a);
+      }
+      first.put(0, b);
+      first.compactTo(indexFile);
+      final DigestIndex second = DigestIndex.open(indexFile);
+      assertThat(second.contains(-500, a)).isTrue();
+      assertThat(second.contains(498, a)).isTrue();
+      assertThat(second.contains(0, b)).isTrue();
+      assertThat(second.contains(0, a)).isFalse();
+      assertThat(second.contains(1, a)).isFalse();
+      second.put(1, b);
+      second.put(2, b);
+      assertThat(second.isMapped())
+          .isEqualTo(SourceText.CAN_MAP && indexFile.getFileSystem() == FileSystems.getDefault());
+      second.compactTo(indexFile);
+      if (!second.isMapped()) {
+        // The entries were read into memory, so replacing the file does not affect them.
+        assertThat(second.contains(0, b)).isTrue();
+      }
+      final DigestIndex third = DigestIndex.open(indexFile);
+      assertThat(third.contains(1, b)).isTrue();
+      assertThat(third.contains(2, b)).isTrue();
+      assertThat(third.contains(4, a)).isTrue();
+      assertThat(Files.size(indexFile)).isEqualTo(12 + 501 * 40);
+      Files.write(indexFile, new byte[] {1, 2, 3});
+      assertThat(DigestIndex.open(indexFile).contains(4, a)).isFalse();
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void durability() {
+    for (final Durability durability : Durability.values()) {
+      final Path sourceDir = _copyTree(_resources("general"), tempDir.resolve(durability.name()));
+      final ArrangementResult result =
+          Jarranger.builder()
+              .log(new SystemStreamLog())
+              .durability(durability)
+              .build()
+              .arrange(sourceDir);
+      assertThat(result.getArranged()).isEqualTo(1);
+      assertThat(_parse(sourceDir.resolve("ArrangePlz.java")))
+          .isEqualTo(_parse(sourceDir.resolve("ArrangePlz.java.expected")));
+      try (Stream<Path> files = Files.walk(sourceDir)) {
+        assertThat(files).noneMatch(file -> file.toString().endsWith(".tmp"));
+      }
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void eventLog() {
+    final RecordingLog log = new RecordingLog();
+    final EventLog events = new EventLog(log, 2, Duration.ZERO);
+    final Throwable error = new IllegalStateException("Expected by the test.");
+    assertThat(events.isDebugEnabled()).isTrue();
+    assertThat(events.isErrorEnabled()).isTrue();
+    assertThat(events.isInfoEnabled()).isTrue();
+    assertThat(events.isWarnEnabled()).isTrue();
+    events.debug("debug");
+    events.debug("debug", error);
+    events.debug(error);
+    events.info("info");
+    events.info("info", error);
+    events.info(error);
+    events.warn("warn");
+    events.warn("warn", error);
+    events.warn(error);
+    events.error("error");
+    events.error("error", error);
+    events.error(error);
+    events.fileDone();
+    events.fileDone();
+    events.close();
+    assertThat(log.getDebugs()).containsExactly("debug");
+    assertThat(log.getInfos())
+        .startsWith("info")
+        .anyMatch(info -> info.startsWith("Processed 2 of 2 files ("));
+    assertThat(log.getWarns()).containsExactly("warn");
+
+    // Messages of cancelled work may come after the close, from several threads at once.
+    final ExecutorService late = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<?>> added = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        final String message = "late " + i;
+        added.add(late.submit(() -> events.warn(message)));
+      }
+      for (final Future<?> future : added) {
+        future.get();
+      }
+    } finally {
+      late.shutdownNow();
+    }
+    assertThat(log.getWarns()).hasSize(101);
+  }
+
+  @Test
+  @SneakyThrows
+  public void fileLimits() {
+    final Path sourceRoot = _inMemory("general");
+    final Path file = sourceRoot.resolve("ArrangePlz.java");
+    final String absolutePath = file.toAbsolutePath().toString();
+    final String original = Files.readString(file);
+    final long size = Files.size(file);
+    final Path stampsFile = sourceRoot.resolveSibling("stamps.properties");
+
+    final ArrangementResult tooLarge =
+        Jarranger.builder()
+            .log(new SystemStreamLog())
+            .maxFileBytes(size - 1)
+            .stampsFile(stampsFile)
+            .build()
+            .arrange(sourceRoot);
+    assertThat(tooLarge.getArranged()).isZero();
+    assertThat(tooLarge.getOverLimitFiles())
+        .containsExactly(Map.entry(absolutePath, "larger than " + (size - 1) + " bytes"));
+
+    final ArrangementResult timedOut =
+        Jarranger.builder()
+            .log(new SystemStreamLog())
+            .format(true)
+            .fileTimeout(Duration.ofNanos(1))
+            .fallback(true)
+            .build()
+            .arrange(sourceRoot);
+    assertThat(timedOut.getArranged()).isZero();
+    assertThat(timedOut.getOverLimitFiles().get(absolutePath))
+        .startsWith("timed out after")
+        .endsWith("also by the fallback");
+    assertThat(Files.readString(file)).isEqualTo(original);
+
+    // Without formatting, the fallback would do the same work again.
+    final ArrangementResult notRetried =
+        Jarranger.builder()
+            .log(new SystemStreamLog())
+            .fileTimeout(Duration.ofNanos(1))
+            .fallback(true)
+            .build()
+            .arrange(sourceRoot);
+    assertThat(notRetried.getOverLimitFiles())
+        .containsExactly(Map.entry(absolutePath, "timed out after " + Duration.ofNanos(1)));
+
+    // The root was not stamped, so the file is tried again.
+    final ArrangementResult withinLimits =
+        Jarranger.builder()
+            .log(new SystemStreamLog())
+            .maxFileBytes(size)
+            .stampsFile(stampsFile)
+            .fileTimeout(Duration.ofMinutes(1))
+            .build()
+            .arrange(sourceRoot);
+    assertThat(withinLimits.getArranged()).isEqualTo(1);
+    assertThat(withinLimits.getOverLimitFiles()).isEmpty();
+  }
+
+  @Test
+  @SneakyThrows
+  public void forkLargeTypes() {
+    // Two top-level types, each with two member types large enough to be forked.
+    final StringBuilder source = new StringBuilder();
+    for (final String top : List.of("A", "B")) {
+      source.append("class ").append(top).append(" {\n");
+      for (final String inner : List.of("C", "D")) {
+        source.append("  static class ").append(inner).append(" {\n");
+        for (int i = Jarranger.FORK_THRESHOLD_LINES; i > 0; i--) {
+          source.append("    void m").append(i).append("() {}\n");
+        }
+        source.append("  }\n");
+      }
+      source.append("  void z() {}\n  int y;\n}\n");
+    }
+    final Path sourceRoot = _inMemory("nochange");
+    final Path file = sourceRoot.resolve("Large.java");
+    Files.writeString(file, source);
+    final ArrangementResult result =
+        Jarranger.builder().log(new SystemStreamLog()).build().arrange(sourceRoot);
+    assertThat(result.getArranged()).isEqualTo(1);
+    final CompilationUnit arranged = _parse(file);
+    for (final TypeDeclaration<?> top : arranged.getTypes()) {
+      assertThat(top.getMember(0)).isInstanceOf(FieldDeclaration.class);
+      for (final String inner : List.of("C", "D")) {
+        final List<String> names = new ArrayList<>();
+        top.getMembers().stream()
+            .filter(m -> m instanceof TypeDeclaration<?>)
+            .map(m -> (TypeDeclaration<?>) m)
+            .filter(t -> t.getNameAsString().equals(inner))
+            .findFirst()
+            .orElseThrow()
+            .getMethods()
+            .forEach(m -> names.add(m.getNameAsString()));
+        assertThat(names).hasSize(Jarranger.FORK_THRESHOLD_LINES).isSorted();
+      }
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void forkedWorkers() {
+    final Path sourceDir = _copyTree(_resources("general"), tempDir.resolve("general"));
+    _copyTree(_resources("malformed"), sourceDir);
+    final ArrangementResult result =
+        Jarranger.builder()
+            .log(new SystemStreamLog())
+            .forkedWorkers(2)
+            .workerJvmArgs("-Xmx64m -XX:+UseSerialGC")
+            .build()
+            .arrange(sourceDir);
+    assertThat(result.getTotal()).isEqualTo(2);
+    assertThat(result.getArranged()).isEqualTo(1);
+    assertThat(_parse(sourceDir.resolve("ArrangePlz.java")))
+        .isEqualTo(_parse(sourceDir.resolve("ArrangePlz.java.expected")));
+  }
+
+  @Test
+  @SneakyThrows
+  public void format() {
+    final Path sourceRoot = _inMemory("general");
+    // Already arranged, so only formatting changes it.
+    final Path unformatted = sourceRoot.resolve("Unformatted.java");
+    Files.writeString(unformatted, "class Unformatted {\n    int  a;\n  void b(){}}\n");
+    // The parser takes a literal the formatter rejects, so this is arranged only.
+    final Path unformattable = sourceRoot.resolve("Unformattable.java");
+    Files.writeString(unformattable, "class Unformattable {\n  void b() {}\n  int a = 09;\n}\n");
+    final RecordingLog log = new RecordingLog();
+    final ArrangementResult result =
+        Jarranger.builder().log(log).format(true).build().arrange(sourceRoot);
+    assertThat(result.getTotal()).isEqualTo(3);
+    assertThat(result.getArranged()).isEqualTo(3);
+    assertThat(log.getWarns())
+        .hasSize(1)
+        .allMatch(m -> m.startsWith("Failed to format " + unformattable.toAbsolutePath() + ": "));
+    assertThat(Files.readString(unformattable))
+        .isEqualTo("class Unformattable {\n  int a = 09;\n\n  void b() {\n  }\n}\n");
+    for (final Path file : List.of(sourceRoot.resolve("ArrangePlz.java"), unformatted)) {
+      final String content = Files.readString(file);
+      assertThat(new Formatter().formatSourceAndFixImports(content)).isEqualTo(content);
+    }
+    assertThat(_parse(sourceRoot.resolve("ArrangePlz.java")))
+        .isEqualTo(_parse(sourceRoot.resolve("ArrangePlz.java.expected")));
   }
 
   @Test
   public void gettersAndSetters() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass())
-            .resolve("src/test/resources/gettersandsetters");
-    targetFileName = "GettersAndSetters";
-    _parseAndCompare();
+    _parseAndCompare("gettersandsetters", "GettersAndSetters");
+  }
+
+  @Test
+  @SneakyThrows
+  public void inOrderAgreesWithArrangement() {
+    int inOrder = 0;
+    for (final String dirName :
+        List.of(
+            "general",
+            "gettersandsetters",
+            "innerannotation",
+            "innerclass",
+            "innerenum",
+            "innerinterface",
+            "nochange",
+            "overloaded",
+            "overloadedsimple")) {
+      try (Stream<Path> files = Files.list(_resources(dirName))) {
+        for (final Path file : (Iterable<Path>) files::iterator) {
+          for (final TypeDeclaration<?> typeDec : _parse(file).findAll(TypeDeclaration.class)) {
+            if (ShallowArranger.isInOrder(typeDec)) {
+              inOrder++;
+              assertThat(new ShallowArranger().arrangeAll(typeDec))
+                  .usingElementComparator((a, b) -> a == b ? 0 : 1)
+                  .containsExactlyElementsOf(typeDec.getMembers());
+            }
+          }
+        }
+      }
+    }
+    assertThat(inOrder).isGreaterThan(0);
   }
 
   @Test
   public void innerAnnotation() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass())
-            .resolve("src/test/resources/innerannotation");
-    targetFileName = "InnerAnnotation";
-    _parseAndCompare();
+    _parseAndCompare("innerannotation", "InnerAnnotation");
   }
 
   @Test
   public void innerClass() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass()).resolve("src/test/resources/innerclass");
-    targetFileName = "InnerClass";
-    _parseAndCompare();
+    _parseAndCompare("innerclass", "InnerClass");
   }
 
   @Test
   public void innerEnum() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass()).resolve("src/test/resources/innerenum");
-    targetFileName = "InnerEnum";
-    _parseAndCompare();
+    _parseAndCompare("innerenum", "InnerEnum");
   }
 
   @Test
   public void innerInterface() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass())
-            .resolve("src/test/resources/innerinterface");
-    targetFileName = "InnerInterface";
-    _parseAndCompare();
+    _parseAndCompare("innerinterface", "InnerInterface");
   }
 
   @Test
   public void malformed() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass()).resolve("src/test/resources/malformed");
-    targetFileName = "Malformed";
-    _backup();
     final ArrangementResult result =
         JarrangerMojo.builder()
             .log(new SystemStreamLog())
-            .testSourceDirectory(testResourcesPath.toFile())
+            .testSourceDirectory(_resources("malformed").toFile())
             .build()
             .arrange();
     assertThat(result.getTotal()).isEqualTo(1);
     assertThat(result.getArranged()).isEqualTo(0);
   }
 
+  @Test
+  @SneakyThrows
+  public void memberFingerprints() {
+    final String source =
+        "class A {\n"
+            + "  int a = 1;\n"
+            + "  @interface B { String[] c() default {\"c\"}; }\n"
+            + "  void d() { e(); }\n"
+            + "  enum F { G { void h() {} }, I; void j() {} }\n"
+            + "  static class K { void l() {} }\n"
+            + "}\n";
+    assertThat(MemberFingerprints.fingerprint(source))
+        .isEqualTo(
+            MemberFingerprints.fingerprint(
+                source
+                    .replace("= 1", "= new int[] {2}[0] + m(() -> { return; })")
+                    .replace("\"c\"", "\"}\", '{'")
+                    .replace("{ e(); }", "{ if (n) { o(\"{\"); } } // p() {")
+                    .replace("{ void h() {} }", "{ void h() { q(); } }")
+                    .replace("void l() {}", "/* r() { */ void l() { s(); }")));
+    for (final String change :
+        List.of(
+            "int a",
+            "String[] c()",
+            "void d()",
+            "enum F { G",
+            "I;",
+            "void j()",
+            "static class K",
+            "void l()")) {
+      assertThat(MemberFingerprints.fingerprint(source.replace(change, change + "2")))
+          .as(change)
+          .isNotEqualTo(MemberFingerprints.fingerprint(source));
+    }
+    for (final String dirName :
+        List.of("general", "gettersandsetters", "innerclass", "innerenum", "overloaded")) {
+      try (Stream<Path> files = Files.list(_resources(dirName))) {
+        final Path file =
+            files.filter(f -> f.toString().endsWith(".java")).findFirst().orElseThrow();
+        assertThat(MemberFingerprints.fingerprint(Files.readString(file)))
+            .as(dirName)
+            .isNotEqualTo(
+                MemberFingerprints.fingerprint(
+                    Files.readString(file.resolveSibling(file.getFileName() + ".expected"))));
+      }
+    }
+  }
+
+  @Test
+  public void mergeShards() {
+    for (int shardIndex = 0; shardIndex < 2; shardIndex++) {
+      final JarrangerMojo mojo =
+          JarrangerMojo.builder()
+              .log(new SystemStreamLog())
+              .artifactId("fixtures")
+              .sourceDirectory(_resources("nochange").toFile())
+              .testSourceDirectory(_resources("malformed").toFile())
+              .shardIndex(shardIndex)
+              .shardCount(2)
+              .build();
+      mojo.setOutputDirectory(tempDir.toFile());
+      mojo.execute();
+    }
+    final ArrangementResult result =
+        JarrangerMergeMojo.builder()
+            .log(new SystemStreamLog())
+            .shardResultsDirectory(tempDir.toFile())
+            .build()
+            .merge();
+    assertThat(result.getTotal()).isEqualTo(2);
+    assertThat(result.getArranged()).isEqualTo(0);
+    assertThat(tempDir.resolve("arrangement.properties")).exists();
+  }
+
+  @Test
+  public void mergeShardsMissing() {
+    final JarrangerMojo mojo =
+        JarrangerMojo.builder()
+            .log(new SystemStreamLog())
+            .artifactId("fixtures")
+            .sourceDirectory(_resources("nochange").toFile())
+            .shardIndex(1)
+            .shardCount(3)
+            .build();
+    mojo.setOutputDirectory(tempDir.toFile());
+    mojo.execute();
+    assertThatIllegalStateException()
+        .isThrownBy(
+            () ->
+                JarrangerMergeMojo.builder()
+                    .log(new SystemStreamLog())
+                    .shardResultsDirectory(tempDir.toFile())
+                    .build()
+                    .execute())
+        .withMessageContaining("{0, 2}");
+  }
+
+  @Test
+  @SneakyThrows
+  public void mergeShardsPerModule() {
+    final JarrangerMergeMojo merge =
+        JarrangerMergeMojo.builder()
+            .log(new SystemStreamLog())
+            .shardResultsDirectory(tempDir.toFile())
+            .build();
+    final Properties empty = ArrangementResult.EMPTY.toProperties();
+    // Each CI node collected its results into a directory of its own. Shard 1 of api does not
+    // make up for the missing shard 1 of core.
+    final Path node0 = Files.createDirectories(tempDir.resolve("node0"));
+    final Path node1 = Files.createDirectories(tempDir.resolve("node1"));
+    for (final Path resultFile :
+        List.of(
+            node0.resolve("core.shard-0-of-2.properties"),
+            node0.resolve("api.shard-0-of-2.properties"),
+            node1.resolve("api.shard-1-of-2.properties"))) {
+      try (Writer writer = Files.newBufferedWriter(resultFile)) {
+        empty.store(writer, null);
+      }
+    }
+    assertThatIllegalStateException()
+        .isThrownBy(merge::merge)
+        .withMessage("Missing results for shards {1} of core.");
+    Files.copy(
+        node1.resolve("api.shard-1-of-2.properties"),
+        node1.resolve("core.shard-1-of-2.properties"));
+    assertThat(merge.merge()).isEqualTo(ArrangementResult.EMPTY);
+
+    // A stale copy of a shard is not counted twice.
+    final Path copy = Files.createDirectories(tempDir.resolve("copy"));
+    Files.copy(
+        node0.resolve("core.shard-0-of-2.properties"),
+        copy.resolve("core.shard-0-of-2.properties"));
+    assertThatIllegalStateException()
+        .isThrownBy(merge::merge)
+        .withMessageStartingWith("Duplicate results for shard 0 of core: ");
+    Files.delete(copy.resolve("core.shard-0-of-2.properties"));
+
+    Files.copy(
+        node1.resolve("api.shard-1-of-2.properties"), node1.resolve("api.shard-2-of-3.properties"));
+    assertThatIllegalStateException()
+        .isThrownBy(merge::merge)
+        .withMessageContaining("is for 3 shards, but others are for 2.");
+  }
+
   @Test
   public void noChange() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass()).resolve("src/test/resources/nochange");
-    targetFileName = "NoChange";
-    _backup();
     final ArrangementResult result =
         JarrangerMojo.builder()
             .log(new SystemStreamLog())
-            .testSourceDirectory(testResourcesPath.toFile())
+            .testSourceDirectory(_resources("nochange").toFile())
             .build()
             .arrange();
     assertThat(result.getTotal()).isEqualTo(1);
@@ -149,52 +1010,632 @@ public final class JarrangerTest {
 
   @Test
   public void overloaded() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass()).resolve("src/test/resources/overloaded");
-    targetFileName = "Overloaded";
-    _parseAndCompare();
+    _parseAndCompare("overloaded", "Overloaded");
   }
 
   @Test
   public void overloadedSimple() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass())
-            .resolve("src/test/resources/overloadedsimple");
-    targetFileName = "OverloadedSimple";
-    _parseAndCompare();
+    _parseAndCompare("overloadedsimple", "OverloadedSimple");
+  }
+
+  @Test
+  @SneakyThrows
+  public void parserProfilesAgree() {
+    final String[][] fixtures = {
+      {"general", "ArrangePlz"},
+      {"gettersandsetters", "GettersAndSetters"},
+      {"innerannotation", "InnerAnnotation"},
+      {"innerclass", "InnerClass"},
+      {"innerenum", "InnerEnum"},
+      {"innerinterface", "InnerInterface"},
+      {"overloaded", "Overloaded"},
+      {"overloadedsimple", "OverloadedSimple"}
+    };
+    try (FileSystem lean = Jimfs.newFileSystem(Configuration.unix());
+        FileSystem stock = Jimfs.newFileSystem(Configuration.unix())) {
+      for (final String[] fixture : fixtures) {
+        final Path leanRoot = _copyTree(_resources(fixture[0]), lean.getPath("/" + fixture[0]));
+        final Path stockRoot = _copyTree(_resources(fixture[0]), stock.getPath("/" + fixture[0]));
+        Jarranger.builder()
+            .log(new SystemStreamLog())
+            .parserProfile(ParserProfile.LEAN)
+            .build()
+            .arrange(leanRoot);
+        Jarranger.builder()
+            .log(new SystemStreamLog())
+            .parserProfile(ParserProfile.DEFAULT)
+            .build()
+            .arrange(stockRoot);
+        assertThat(Files.readString(leanRoot.resolve(fixture[1] + ".java")))
+            .isEqualTo(Files.readString(stockRoot.resolve(fixture[1] + ".java")));
+      }
+    }
   }
 
   @Test
   public void pom() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass()).resolve("src/test/resources/general");
-    targetFileName = "ArrangePlz";
-    _backup();
     final ArrangementResult result =
         JarrangerMojo.builder()
             .log(new SystemStreamLog())
             .packaging("pom")
-            .sourceDirectory(testResourcesPath.toFile())
+            .sourceDirectory(_resources("general").toFile())
             .build()
             .arrange();
     assertThat(result.getTotal()).isEqualTo(0);
     assertThat(result.getArranged()).isEqualTo(0);
   }
 
+  @Test
+  public void progress() {
+    final Path sourceRoot = _inMemory("general");
+    final RecordingLog log = new RecordingLog();
+    Jarranger.builder().log(log).progressInterval(Duration.ZERO).build().arrange(sourceRoot);
+    assertThat(log.getInfos()).anyMatch(info -> info.startsWith("Processed 1 of 1 files ("));
+    // Messages of workers are written before the run returns.
+    assertThat(log.started()).containsExactly("ArrangePlz.java");
+    assertThat(log.getDebugs()).contains("Arranged " + sourceRoot.resolve("ArrangePlz.java"));
+  }
+
+  @Test
+  @SneakyThrows
+  public void scheduleLargestFirst() {
+    fileSystem = Jimfs.newFileSystem(Configuration.unix());
+    final Path sourceRoot = fileSystem.getPath("/src");
+    Files.createDirectories(sourceRoot);
+    for (final int size : new int[] {10, 300, 20, 200}) {
+      Files.writeString(
+          sourceRoot.resolve("C" + size + ".java"),
+          "class C" + size + " {" + " ".repeat(size) + "}");
+    }
+    final Path costsFile = fileSystem.getPath("/target/costs.properties");
+    final RecordingLog firstLog = new RecordingLog();
+    Jarranger.builder().log(firstLog).threads(1).costsFile(costsFile).build().arrange(sourceRoot);
+    assertThat(firstLog.started())
+        .containsExactly("C300.java", "C200.java", "C20.java", "C10.java");
+    assertThat(firstLog.getInfos()).anyMatch(m -> m.contains("largest-first scheduling"));
+    assertThat(costsFile).exists();
+
+    // Recorded costs take precedence over size.
+    final Properties costs = new Properties();
+    costs.setProperty(sourceRoot.resolve("C10.java").toString(), "999999999999");
+    costs.setProperty("nanosPerByte", "1");
+    try (Writer writer = Files.newBufferedWriter(costsFile)) {
+      costs.store(writer, null);
+    }
+    final RecordingLog secondLog = new RecordingLog();
+    Jarranger.builder().log(secondLog).threads(1).costsFile(costsFile).build().arrange(sourceRoot);
+    assertThat(secondLog.started())
+        .containsExactly("C10.java", "C300.java", "C200.java", "C20.java");
+  }
+
+  @Test
+  @SneakyThrows
+  public void shards() {
+    fileSystem = Jimfs.newFileSystem(Configuration.unix());
+    final Path sourceRoot = fileSystem.getPath("/src");
+    final List<Path> sourceFiles = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      final Path sourceFile = sourceRoot.resolve("p" + (i % 7)).resolve("C" + i + ".java");
+      Files.createDirectories(sourceFile.getParent());
+      Files.writeString(sourceFile, "class C" + i + " {" + " ".repeat(i * i) + "}");
+      sourceFiles.add(sourceFile);
+    }
+    for (final boolean bySize : new boolean[] {false, true}) {
+      final List<Path> union = new ArrayList<>();
+      final List<Long> loads = new ArrayList<>();
+      for (int index = 0; index < 4; index++) {
+        final Shard shard = new Shard(index, 4, bySize);
+        final List<Path> selected = shard.select(sourceRoot, sourceFiles);
+        assertThat(selected).isEqualTo(shard.select(sourceRoot, sourceFiles));
+        union.addAll(selected);
+        long load = 0;
+        for (final Path sourceFile : selected) {
+          load += Files.size(sourceFile);
+        }
+        loads.add(load);
+        final ArrangementResult result =
+            Jarranger.builder().log(new SystemStreamLog()).shard(shard).build().arrange(sourceRoot);
+        assertThat(result.getTotal()).isEqualTo(selected.size());
+      }
+      assertThat(union).containsExactlyInAnyOrderElementsOf(sourceFiles);
+      if (bySize) {
+        assertThat(Collections.max(loads) - Collections.min(loads))
+            .isLessThanOrEqualTo(Files.size(sourceRoot.resolve("p0/C49.java")));
+      }
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void sharedCache() {
+    final Path cacheDir = tempDir.resolve("cache");
+    final List<RecordingLog> logs = new ArrayList<>();
+    for (final String checkout : List.of("a", "b", "c")) {
+      final Path sourceDir = _copyTree(_resources("general"), tempDir.resolve(checkout));
+      final RecordingLog log = new RecordingLog();
+      final JarrangerMojo mojo =
+          JarrangerMojo.builder().log(log).sourceDirectory(sourceDir.toFile()).build();
+      mojo.setSharedCache(true);
+      mojo.setSharedCacheDirectory(cacheDir.toFile());
+      if (checkout.equals("c")) {
+        mojo.setSharedCacheMaxMegabytes(0);
+      }
+      final ArrangementResult result = mojo.arrange();
+      assertThat(result.getArranged()).isEqualTo(1);
+      assertThat(_parse(sourceDir.resolve("ArrangePlz.java")))
+          .isEqualTo(_parse(sourceDir.resolve("ArrangePlz.java.expected")));
+      logs.add(log);
+    }
+    assertThat(logs.get(0).getDebugs()).noneMatch(m -> m.startsWith("Reused shared result"));
+    assertThat(logs.get(1).getDebugs())
+        .contains("Reused shared result for " + tempDir.resolve("b/ArrangePlz.java"));
+    try (Stream<Path> files = Files.walk(cacheDir, 2)) {
+      assertThat(files.filter(f -> Files.isRegularFile(f) && !f.getParent().equals(cacheDir)))
+          .isEmpty();
+    }
+
+    // Sharing is best effort, so a cache that cannot be written does not fail the build.
+    final Path notADirectory = Files.writeString(tempDir.resolve("not-a-directory"), "");
+    final Path sourceDir = _copyTree(_resources("general"), tempDir.resolve("d"));
+    final RecordingLog log = new RecordingLog();
+    final JarrangerMojo mojo =
+        JarrangerMojo.builder().log(log).sourceDirectory(sourceDir.toFile()).build();
+    mojo.setSharedCache(true);
+    mojo.setSharedCacheDirectory(notADirectory.toFile());
+    final ArrangementResult result = mojo.arrange();
+    assertThat(result.getArranged()).isEqualTo(1);
+    assertThat(log.getWarns())
+        .anyMatch(m -> m.startsWith("Failed to share a result in " + notADirectory));
+  }
+
+  @Test
+  @SneakyThrows
+  public void sharedCacheEntries() {
+    final Path cacheDir = tempDir.resolve("cache");
+    final SharedCache cache = new SharedCache(cacheDir, new RecordingLog(), 64, "salt");
+    // Nothing to evict before the first entry.
+    cache.evict();
+    final byte[] unchanged = "class A {}\n".getBytes(StandardCharsets.UTF_8);
+    final SourceText original = SourceText.of(ByteBuffer.wrap(unchanged));
+    final HashCode unchangedKey = cache.key(ByteBuffer.wrap(unchanged));
+    assertThat(cache.get(unchangedKey, original)).isEmpty();
+    cache.put(unchangedKey, original, "class A {}\n");
+    cache.put(unchangedKey, original, "class A {}\n");
+    assertThat(cache.get(unchangedKey, original)).containsSame(original);
+
+    final String arranged = "class B {\n" + "  int x;\n".repeat(10) + "}\n";
+    final HashCode changedKey = cache.key(ByteBuffer.wrap(new byte[] {1}));
+    cache.put(changedKey, original, arranged);
+    assertThat(cache.get(changedKey, original).map(CharSequence::toString)).contains(arranged);
+
+    // Entries that are empty or of an unknown kind are misses.
+    final HashCode corruptKey = cache.key(ByteBuffer.wrap(new byte[] {2}));
+    final Path corrupt = cacheDir.resolve(corruptKey.toString().substring(0, 2));
+    Files.createDirectories(corrupt);
+    Files.write(corrupt.resolve(corruptKey.toString()), new byte[0]);
+    assertThat(cache.get(corruptKey, original)).isEmpty();
+    Files.write(corrupt.resolve(corruptKey.toString()), new byte[] {9});
+    assertThat(cache.get(corruptKey, original)).isEmpty();
+
+    final Path changed =
+        cacheDir.resolve(changedKey.toString().substring(0, 2)).resolve(changedKey.toString());
+    Files.setLastModifiedTime(changed, FileTime.fromMillis(0));
+    final Path abandoned = Files.writeString(corrupt.resolve("abandoned.tmp"), "");
+    Files.setLastModifiedTime(abandoned, FileTime.fromMillis(0));
+    final Path inProgress = Files.writeString(corrupt.resolve("in-progress.tmp"), "");
+    // Another thread of this process is evicting.
+    try (FileChannel lockChannel =
+            FileChannel.open(
+                cacheDir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = lockChannel.lock()) {
+      cache.evict();
+    }
+    assertThat(changed).exists();
+    assertThat(abandoned).exists();
+    cache.evict();
+    // The least recently used entry is enough to get under three quarters of the maximum.
+    assertThat(changed).doesNotExist();
+    assertThat(abandoned).doesNotExist();
+    assertThat(inProgress).exists();
+    assertThat(cache.get(unchangedKey, original)).containsSame(original);
+  }
+
   @Test
   public void skip() {
-    testResourcesPath =
-        CodeGenerationUtils.mavenModuleRoot(getClass()).resolve("src/test/resources/general");
-    targetFileName = "ArrangePlz";
-    _backup();
-    final ArrangementResult result =
+    final JarrangerMojo mojo =
         JarrangerMojo.builder()
             .log(new SystemStreamLog())
-            .sourceDirectory(testResourcesPath.toFile())
-            .skip(true)
-            .build()
-            .arrange();
+            .sourceDirectory(_resources("general").toFile())
+            .build();
+    mojo.setSkip(true);
+    final ArrangementResult result = mojo.arrange();
     assertThat(result.getTotal()).isEqualTo(0);
     assertThat(result.getArranged()).isEqualTo(0);
   }
+
+  @Test
+  @SneakyThrows
+  public void skipKnownParseFailures() {
+    final Path sourceDir = _copyTree(_resources("malformed"), tempDir.resolve("test"));
+    final Path malformed = sourceDir.resolve("Malformed.java");
+    final Path parseFailuresFile = tempDir.resolve("parse-failures.idx");
+    final List<List<String>> warnsByRun = new ArrayList<>();
+    for (int run = 0; run < 3; run++) {
+      if (run == 2) {
+        Files.writeString(malformed, Files.readString(malformed) + "\n// Changed.\n");
+      }
+      final RecordingLog log = new RecordingLog();
+      final ArrangementResult result =
+          Jarranger.builder()
+              .log(log)
+              .parseFailuresFile(parseFailuresFile)
+              .build()
+              .arrange(sourceDir);
+      assertThat(result.getTotal()).isEqualTo(1);
+      assertThat(result.getArranged()).isZero();
+      warnsByRun.add(log.getWarns());
+    }
+    assertThat(warnsByRun.get(0)).containsExactly("Failed to parse " + malformed);
+    assertThat(warnsByRun.get(1))
+        .containsExactly(
+            "Skipped 1 files that failed to parse in an earlier run and have not changed since.");
+    assertThat(warnsByRun.get(2)).containsExactly("Failed to parse " + malformed);
+  }
+
+  @Test
+  @SneakyThrows
+  public void skipUnchangedMemberHeaders() {
+    final Path sourceDir = _copyTree(_resources("general"), tempDir.resolve("main"));
+    final Path arranged = sourceDir.resolve("ArrangePlz.java");
+    final Path outputDir = tempDir.resolve("out");
+    final JarrangerMojo first =
+        JarrangerMojo.builder()
+            .log(new SystemStreamLog())
+            .sourceDirectory(sourceDir.toFile())
+            .build();
+    first.setOutputDirectory(outputDir.toFile());
+    assertThat(first.arrange().getArranged()).isEqualTo(1);
+    Files.writeString(
+        arranged, Files.readString(arranged).replace("Object _09_x = null;", "int _09_x = 9;"));
+    final RecordingLog log = new RecordingLog();
+    final JarrangerMojo second =
+        JarrangerMojo.builder().log(log).sourceDirectory(sourceDir.toFile()).build();
+    second.setOutputDirectory(outputDir.toFile());
+    final ArrangementResult result = second.arrange();
+    assertThat(result.getTotal()).isEqualTo(1);
+    assertThat(result.getArranged()).isEqualTo(0);
+    assertThat(log.getDebugs()).contains("Member headers unchanged in " + arranged);
+
+    // Another plugin version may order members differently.
+    Files.writeString(
+        arranged, Files.readString(arranged).replace("int _09_x = 9;", "int _09_x = 10;"));
+    final RecordingLog upgradedLog = new RecordingLog();
+    final JarrangerMojo upgraded =
+        JarrangerMojo.builder().log(upgradedLog).sourceDirectory(sourceDir.toFile()).build();
+    upgraded.setOutputDirectory(outputDir.toFile());
+    upgraded.setPluginVersion("2.0");
+    upgraded.arrange();
+    assertThat(upgradedLog.getDebugs()).doesNotContain("Member headers unchanged in " + arranged);
+  }
+
+  @Test
+  @SneakyThrows
+  public void skipUnchangedRoots() {
+    final Path sourceDir = _copyTree(_resources("general"), tempDir.resolve("main"));
+    final JarrangerMojo mojo =
+        JarrangerMojo.builder()
+            .log(new SystemStreamLog())
+            .sourceDirectory(sourceDir.toFile())
+            .build();
+    mojo.setOutputDirectory(tempDir.resolve("out").toFile());
+    assertThat(mojo.arrange().getArranged()).isEqualTo(1);
+    assertThat(mojo.arrange().getTotal()).isEqualTo(0);
+    Files.writeString(sourceDir.resolve("Added.java"), "class Added {}\n");
+    assertThat(mojo.arrange().getTotal()).isEqualTo(2);
+    assertThat(mojo.arrange().getTotal()).isEqualTo(0);
+
+    // Another plugin version may order members differently.
+    final JarrangerMojo upgraded =
+        JarrangerMojo.builder()
+            .log(new SystemStreamLog())
+            .sourceDirectory(sourceDir.toFile())
+            .build();
+    upgraded.setOutputDirectory(tempDir.resolve("out").toFile());
+    upgraded.setPluginVersion("2.0");
+    assertThat(upgraded.arrange().getTotal()).isEqualTo(2);
+    assertThat(upgraded.arrange().getTotal()).isEqualTo(0);
+  }
+
+  @Test
+  @SneakyThrows
+  public void sourceText() {
+    final StringBuilder large = new StringBuilder("class Large {\n");
+    while (large.length() < 2 * SourceText.MAP_THRESHOLD) {
+      large.append("  void m").append(large.length()).append("() {}\n");
+    }
+    large.append("  int field;\n}\n");
+    final Path sourceDir = Files.createDirectories(tempDir.resolve("src"));
+    final Path ascii = Files.writeString(sourceDir.resolve("Large.java"), large);
+    final Path utf8 =
+        Files.writeString(
+            sourceDir.resolve("Accents.java"),
+            "class Accents {\n  void \u00e9() {}\n  int \u00fc;\n}\n");
+    for (final Path file : List.of(ascii, utf8)) {
+      final String expected = Files.readString(file);
+      final SourceText text = SourceText.read(file);
+      assertThat(text.asciiBytes().isPresent()).isEqualTo(file.equals(ascii));
+      assertThat(text.contentEquals(expected)).isTrue();
+      assertThat(text.contentEquals(expected + " ")).isFalse();
+      assertThat(text.toString()).isEqualTo(expected);
+      assertThat(text.subSequence(0, 5).toString()).isEqualTo("class");
+      try (Reader reader = text.reader()) {
+        assertThat(CharStreams.toString(reader)).isEqualTo(expected);
+      }
+    }
+    assertThat(
+            Jarranger.builder().log(new SystemStreamLog()).build().arrange(sourceDir).getArranged())
+        .isEqualTo(2);
+    assertThat(Files.readString(ascii)).startsWith("class Large {\n  int field;\n");
+    assertThat(Files.readString(utf8)).startsWith("class Accents {\n  int \u00fc;\n");
+  }
+
+  @Test
+  @SneakyThrows
+  public void sourceWriter() {
+    // Several chunks, with characters of more than one byte across their boundaries.
+    final String content = "class Large { String s = \"\u00e9\u20ac\"; }\n".repeat(10_000);
+    final byte[] expected = content.getBytes(StandardCharsets.UTF_8);
+    final Map<Path, CompletableFuture<HashCode>> writes = new HashMap<>();
+    final SourceWriter writer = new SourceWriter(Durability.END_OF_RUN, 2, 2);
+    for (int i = 0; i < 8; i++) {
+      final Path file = Files.writeString(tempDir.resolve("Large" + i + ".java"), "");
+      // Syncing a read-only file needs no write access.
+      Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("r--r--r--"));
+      writes.put(file, writer.write(file, content));
+    }
+    writer.close();
+    for (final Map.Entry<Path, CompletableFuture<HashCode>> write : writes.entrySet()) {
+      assertThat(Files.readAllBytes(write.getKey())).isEqualTo(expected);
+      assertThat(write.getValue().join()).isEqualTo(Hashing.sha256().hashBytes(expected));
+    }
+
+    // A file that is gone by the end of the run cannot be synced.
+    final SourceWriter failing = new SourceWriter(Durability.END_OF_RUN, 1, 1);
+    final Path gone = Files.writeString(tempDir.resolve("Gone.java"), "");
+    failing.write(gone, "class Gone {}\n").join();
+    Files.delete(gone);
+    assertThatThrownBy(failing::close).hasRootCauseInstanceOf(NoSuchFileException.class);
+  }
+
+  @Test
+  @SneakyThrows
+  public void streamedOutput() {
+    final Path sourceDir = Files.createDirectories(tempDir.resolve("src"));
+    final Path file =
+        Files.writeString(
+            sourceDir.resolve("Streamed.java"),
+            "class Streamed {\n"
+                + "  void b() {}\n"
+                + "  int a;\n"
+                + "  class Inner {\n"
+                + "    void d() {}\n"
+                + "    int c;\n"
+                + "  }\n"
+                + "}\n");
+    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-x---"));
+    final ArrangementResult result =
+        Jarranger.builder().log(new SystemStreamLog()).build().arrange(sourceDir);
+    final byte[] written = Files.readAllBytes(file);
+    assertThat(new String(written, StandardCharsets.UTF_8))
+        .isEqualTo(
+            "class Streamed {\n"
+                + "  int a;\n"
+                + "\n"
+                + "  void b() {\n"
+                + "  }\n"
+                + "\n"
+                + "  class Inner {\n"
+                + "    int c;\n"
+                + "\n"
+                + "    void d() {\n"
+                + "    }\n"
+                + "  }\n"
+                + "}\n");
+    assertThat(result.getChangedFiles())
+        .containsExactly(entry(file.toString(), Hashing.sha256().hashBytes(written).toString()));
+    assertThat(Files.getPosixFilePermissions(file))
+        .isEqualTo(PosixFilePermissions.fromString("rwxr-x---"));
+    try (Stream<Path> files = Files.list(sourceDir)) {
+      assertThat(files).containsExactly(file);
+    }
+  }
+
+  @Test
+  public void timingReport() {
+    final TimingReport report =
+        TimingReport.builder()
+            .schedule(SchedulingPolicy.LARGEST_FIRST)
+            .threads(2)
+            .files(3)
+            .wallNanos(2_000_000_000L)
+            .busyNanos(3_000_000_000L)
+            .slowestFile("/src/Slow.java")
+            .slowestNanos(1_500_000_000L)
+            .workerChanges(List.of("2 workers", "1 at 0.5 s"))
+            .build();
+    assertThat(report.summary())
+        .isEqualTo(
+            "Timing: 3 files in 2.00 s on 2 threads, largest-first scheduling, 75% busy."
+                + " Slowest file /src/Slow.java took 1.50 s."
+                + " Workers: 2 workers, 1 at 0.5 s.");
+    final TimingReport empty =
+        TimingReport.builder().schedule(SchedulingPolicy.DISCOVERY).threads(1).build();
+    assertThat(empty.utilization()).isZero();
+    assertThat(empty.summary())
+        .isEqualTo("Timing: 0 files in 0.00 s on 1 thread, discovery scheduling, 0% busy.");
+    assertThat(empty)
+        .isEqualTo(TimingReport.builder().schedule(SchedulingPolicy.DISCOVERY).threads(1).build())
+        .isNotEqualTo(report);
+  }
+
+  @Test
+  public void virtualThreads() {
+    assumeTrue(Runtime.version().feature() >= 21, "Virtual threads need Java 21 or later.");
+    final Path sourceRoot = _inMemory("general");
+    final RecordingLog log = new RecordingLog();
+    final ArrangementResult result =
+        Jarranger.builder().log(log).virtualThreads(true).threads(2).build().arrange(sourceRoot);
+    assertThat(result.getArranged()).isEqualTo(1);
+    assertThat(_parse(sourceRoot.resolve("ArrangePlz.java")))
+        .isEqualTo(_parse(sourceRoot.resolve("ArrangePlz.java.expected")));
+    assertThat(log.getWarns()).isEmpty();
+  }
+
+  @Test
+  public void virtualThreadsNeedJava21() {
+    assumeTrue(Runtime.version().feature() < 21, "Virtual threads are available.");
+    final Path sourceRoot = _inMemory("general");
+    final RecordingLog log = new RecordingLog();
+    final ArrangementResult result =
+        Jarranger.builder().log(log).virtualThreads(true).threads(2).build().arrange(sourceRoot);
+    assertThat(result.getArranged()).isEqualTo(1);
+    assertThat(log.getWarns())
+        .containsExactly(
+            "Virtual threads need Java 21 or later, so every stage runs on the thread pool.");
+  }
+
+  @Test
+  public void workerPoolReplacesWorkers() {
+    final Path path = Paths.get("/src/A.java");
+    final SourceText content =
+        SourceText.of(ByteBuffer.wrap("class A {}\n".getBytes(StandardCharsets.UTF_8)));
+    // Each worker leaves a file unchanged, fails the next, times out on the one after, then sends a
+    // status the pool does not know.
+    final List<String> command =
+        List.of("sh", "-c", "printf '\\000\\004\\000\\002hi\\003\\011'; exec cat >/dev/null");
+    assertTimeoutPreemptively(
+        Duration.ofMinutes(1),
+        () -> {
+          try (WorkerPool pool =
+              WorkerPool.start(command, 1, false, ParserProfile.LEAN, Duration.ofSeconds(1))) {
+            assertThat(pool).hasToString("1 worker JVMs");
+            assertThat(pool.arrange(path, content, false)).containsSame(content);
+            assertThatIllegalStateException()
+                .isThrownBy(() -> pool.arrange(path, content, false))
+                .withMessage("Worker JVM failed to arrange " + path + ": hi");
+            assertThatThrownBy(() -> pool.arrange(path, content, false))
+                .isInstanceOf(Deadline.Exceeded.class);
+            assertThatIllegalStateException()
+                .isThrownBy(() -> pool.arrange(path, content, false))
+                .withMessage("Unknown status 9 from worker JVM.");
+            // Only a new worker answers again.
+            assertThat(pool.arrange(path, content, false)).containsSame(content);
+          }
+        });
+
+    // Keeps its output open but never answers, so the watchdog stops it once the timeout and the
+    // grace period pass.
+    assertTimeoutPreemptively(
+        Duration.ofMinutes(1),
+        () -> {
+          try (WorkerPool pool =
+              WorkerPool.start(
+                  List.of("sh", "-c", "cat >/dev/null"),
+                  1,
+                  false,
+                  ParserProfile.LEAN,
+                  Duration.ofMillis(100))) {
+            // The second file goes to the worker that replaced the stopped one.
+            for (int i = 0; i < 2; i++) {
+              assertThatThrownBy(() -> pool.arrange(path, content, false))
+                  .isInstanceOf(Deadline.Exceeded.class);
+            }
+          }
+        });
+
+    // Reads the settings, then exits.
+    try (WorkerPool pool =
+        WorkerPool.start(
+            List.of("sh", "-c", "head -c 19 >/dev/null"), 1, false, ParserProfile.LEAN, null)) {
+      for (int i = 0; i < 2; i++) {
+        assertThatThrownBy(() -> pool.arrange(path, content, false))
+            .isInstanceOf(UncheckedIOException.class)
+            .hasMessage("Lost worker JVM while arranging " + path);
+      }
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void writeErrors() {
+    // Room for the sources, but not for the files they are arranged into.
+    try (FileSystem full =
+        Jimfs.newFileSystem(
+            Configuration.unix().toBuilder().setBlockSize(4096).setMaxSize(2 * 4096).build())) {
+      final Path sourceRoot = Files.createDirectories(full.getPath("/src"));
+      final String source = "class Full {\n  void b() {}\n  int a;\n}\n";
+      final Path first = Files.writeString(sourceRoot.resolve("First.java"), source);
+      final Path second = Files.writeString(sourceRoot.resolve("Second.java"), source);
+      assertThatIllegalStateException()
+          .isThrownBy(
+              () -> Jarranger.builder().log(new SystemStreamLog()).build().arrange(sourceRoot))
+          .withMessage("Failed to write 2 files.")
+          .satisfies(e -> assertThat(e.getSuppressed()).hasSize(1));
+      assertThat(Files.readString(first)).isEqualTo(source);
+      assertThat(Files.readString(second)).isEqualTo(source);
+      try (Stream<Path> files = Files.list(sourceRoot)) {
+        assertThat(files).containsExactlyInAnyOrder(first, second);
+      }
+    }
+
+    // Nor can a file be written into a directory that is gone.
+    final SourceWriter writer = new SourceWriter(Durability.PER_FILE, 1, 1);
+    final CompletableFuture<HashCode> gone =
+        writer.write(tempDir.resolve("gone/Gone.java"), "class Gone {}\n");
+    writer.close();
+    assertThat(gone).isCompletedExceptionally();
+    assertThatThrownBy(gone::join).hasCauseInstanceOf(NoSuchFileException.class);
+  }
+
+  /** Keeps the messages of interest to the tests. */
+  private static final class RecordingLog extends SystemStreamLog {
+    @Getter private final List<String> debugs = Collections.synchronizedList(new ArrayList<>());
+
+    @Getter private final List<String> infos = Collections.synchronizedList(new ArrayList<>());
+
+    @Getter private final List<String> warns = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void debug(final CharSequence content) {
+      debugs.add(content.toString());
+    }
+
+    @Override
+    public void info(final CharSequence content) {
+      infos.add(content.toString());
+      super.info(content);
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+      return true;
+    }
+
+    /** Names of the files in the order they were started. */
+    List<String> started() {
+      final List<String> started = new ArrayList<>();
+      for (final String debug : debugs) {
+        if (debug.startsWith("Processing ")) {
+          started.add(debug.substring(debug.lastIndexOf('/') + 1));
+        }
+      }
+      return started;
+    }
+
+    @Override
+    public void warn(final CharSequence content) {
+      warns.add(content.toString());
+      super.warn(content);
+    }
+  }
 }
@@ -0,0 +1,175 @@
+package gov.va.jarranger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.google.common.collect.ImmutableMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import lombok.SneakyThrows;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Budgets for the hot paths, on generated sources of a fixed size. The budgets are upper bounds on
+ * operation counts and on the bytes allocated by the thread doing the work, not on wall-clock time,
+ * so they do not depend on the machine. Each is about one and a half times what the code needs
+ * today, so a change that doubles what a path allocates goes over. The list operations are counted
+ * at two sizes, so a change that makes grouping quadratic goes over too.
+ */
+public final class PerformanceBudgetTest {
+  /** Members of the generated type. */
+  private static final int MEMBERS = 2_000;
+
+  /** Runs before measuring, so that class loading and the JIT compiler do not count. */
+  private static final int WARMUP = 5;
+
+  @TempDir Path tempDir;
+
+  /** Run the work for warm-up, then return the bytes the current thread allocated in one run. */
+  private static long _allocatedBytes(final Runnable work) {
+    for (int i = 0; i < WARMUP; i++) {
+      work.run();
+    }
+    final long before = PhaseTimes.threadAllocatedBytes();
+    assumeTrue(before >= 0, "The JVM does not count allocated bytes.");
+    work.run();
+    return PhaseTimes.threadAllocatedBytes() - before;
+  }
+
+  /** A dry run on one thread, so the work of each file is allocated on the thread it counts on. */
+  private static Jarranger _arranger(final PhaseTimes phaseTimes) {
+    return Jarranger.builder()
+        .log(new SystemStreamLog())
+        .threads(1)
+        .dryRun(true)
+        .phaseTimes(phaseTimes)
+        .build();
+  }
+
+  /**
+   * A class of the given number of members, in the reverse of their arranged order: setters before
+   * getters, overloads apart, and methods before fields.
+   */
+  private static String _generate(final int members) {
+    final StringBuilder source = new StringBuilder("class Generated {\n");
+    // Five members per property.
+    for (int i = members / 5 - 1; i >= 0; i--) {
+      source.append(
+          String.format(
+              Locale.ROOT,
+              "  void setValue%1$d(int value) {\n    value%1$d = value;\n  }\n"
+                  + "  int overload%1$d(String s) {\n    return s.length();\n  }\n"
+                  + "  int getValue%1$d() {\n    return value%1$d;\n  }\n"
+                  + "  int overload%1$d(int i) {\n    return i + \"{\".length();\n  }\n"
+                  + "  private int value%1$d;\n",
+              i));
+    }
+    return source.append("}\n").toString();
+  }
+
+  @Test
+  public void arrangerAllocation() {
+    final TypeDeclaration<?> type = StaticJavaParser.parse(_generate(MEMBERS)).getType(0);
+    final ShallowArranger arranger = new ShallowArranger();
+    final long allocated = _allocatedBytes(() -> arranger.arrangeAll(type));
+    assertThat(allocated).isLessThanOrEqualTo(MEMBERS * 1_300L);
+  }
+
+  @Test
+  public void arrangerListOperations() {
+    for (final int members : List.of(MEMBERS, 4 * MEMBERS)) {
+      final TypeDeclaration<?> type = StaticJavaParser.parse(_generate(members)).getType(0);
+      final CountingList<MethodDeclaration> methods = new CountingList<>(type.getMethods());
+      ShallowArranger.sortMethods(methods);
+      assertThat(methods.operations).isLessThanOrEqualTo(12L * methods.size());
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  public void fileAllocation() {
+    final Path sourceDir = Files.createDirectories(tempDir.resolve("src"));
+    Files.writeString(sourceDir.resolve("Generated.java"), _generate(MEMBERS / 4));
+    final Map<String, List<Path>> sourceRootDirsByModule =
+        ImmutableMap.of("budget", List.of(sourceDir));
+    for (int i = 0; i < WARMUP; i++) {
+      _arranger(null).arrange(sourceRootDirsByModule);
+    }
+    final PhaseTimes phaseTimes = new PhaseTimes();
+    _arranger(phaseTimes).arrange(sourceRootDirsByModule);
+    final long perFile = phaseTimes.allocatedBytesPerFile();
+    assumeTrue(perFile > 0, "The JVM does not count allocated bytes.");
+    // Printing copies and sorts the siblings of each member, so this grows faster than the file.
+    assertThat(perFile).isLessThanOrEqualTo(72L << 20);
+  }
+
+  @Test
+  public void fingerprintAllocation() {
+    final SourceText source =
+        SourceText.of(ByteBuffer.wrap(_generate(MEMBERS).getBytes(StandardCharsets.US_ASCII)));
+    final long allocated = _allocatedBytes(() -> MemberFingerprints.fingerprint(source));
+    assertThat(allocated).isLessThanOrEqualTo(source.length() * 27L);
+  }
+
+  /**
+   * A list that counts the elements it reads, writes and shifts. Searching or removing by value
+   * goes through get(), so a lookup costs as many operations as the elements it passes.
+   */
+  private static final class CountingList<T> extends AbstractList<T> {
+    private final List<T> elements;
+
+    private long operations;
+
+    CountingList(final List<T> elements) {
+      this.elements = new ArrayList<>(elements);
+    }
+
+    @Override
+    public void add(final int index, final T element) {
+      operations += elements.size() - index + 1;
+      elements.add(index, element);
+    }
+
+    /** As for an array list, which clears in one pass. */
+    @Override
+    public void clear() {
+      operations += elements.size();
+      elements.clear();
+    }
+
+    @Override
+    public T get(final int index) {
+      operations++;
+      return elements.get(index);
+    }
+
+    @Override
+    public T remove(final int index) {
+      operations += elements.size() - index;
+      return elements.remove(index);
+    }
+
+    @Override
+    public T set(final int index, final T element) {
+      operations++;
+      return elements.set(index, element);
+    }
+
+    @Override
+    public int size() {
+      return elements.size();
+    }
+  }
+}